@@ -0,0 +1,96 @@
+import java.util.Arrays;
+
+// Append-only bit sequence packed into longs, most significant bit first.
+// Bit i lives in words[i / 64] at position 63 - i % 64.
+public final class BitBuffer {
+
+    private long[] words;
+    private int size;
+
+    public BitBuffer() {
+        this(64);
+    }
+
+    public BitBuffer(int capacity) {
+        words = new long[Math.max(1, (capacity + 63) >>> 6)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0, Math.min(words.length, (size + 63) >>> 6), 0L);
+        size = 0;
+    }
+
+    // Appends the lowest count bits of value, highest of them first. count must be in range [0 - 32].
+    public void appendBits(int value, int count) {
+        if (count == 0) return;
+        ensureCapacity(size + count);
+        long bits = value & (0xFFFFFFFFL >>> (32 - count));
+        int word = size >>> 6;
+        int free = 64 - (size & 63);
+        if (count <= free) {
+            words[word] |= bits << (free - count);
+        } else {
+            words[word] |= bits >>> (count - free);
+            words[word + 1] |= bits << (64 - count + free);
+        }
+        size += count;
+    }
+
+    public void appendBit(boolean bit) {
+        appendBits(bit ? 1 : 0, 1);
+    }
+
+    public int getBit(int index) {
+        return (int) (words[index >>> 6] >>> (63 - (index & 63))) & 1;
+    }
+
+    // Reads count bits starting at index, first bit read becomes the highest. count must be in range [1 - 32].
+    public int getBits(int index, int count) {
+        int word = index >>> 6;
+        int offset = index & 63;
+        long bits;
+        if (offset + count <= 64) {
+            bits = words[word] >>> (64 - offset - count);
+        } else {
+            int rest = offset + count - 64;
+            bits = (words[word] << rest) | (words[word + 1] >>> (64 - rest));
+        }
+        return (int) (bits & (0xFFFFFFFFL >>> (32 - count)));
+    }
+
+    // Codeword (8 bits) with the given number. Missing bits beyond size are read as 0.
+    public int getCodeword(int n) {
+        return getBits(n << 3, 8);
+    }
+
+    // 64 bits starting at the bit 64 * n, missing bits beyond size are read as 0
+    public long getWord(int n) {
+        return n < words.length ? words[n] : 0L;
+    }
+
+    public void getCodewords(int fromCodeword, byte[] dst, int dstFrom, int length) {
+        for (int i = 0; i < length; i++) {
+            dst[dstFrom + i] = (byte) getCodeword(fromCodeword + i);
+        }
+    }
+
+    public void ensureCapacity(int capacity) {
+        int needWords = (capacity + 63) >>> 6;
+        if (needWords > words.length) {
+            words = Arrays.copyOf(words, Math.max(needWords, words.length * 2));
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder bits = new StringBuilder(size);
+        for (int i = 0; i < size; i++) {
+            bits.append(getBit(i) == 1 ? '1' : '0');
+        }
+        return bits.toString();
+    }
+}
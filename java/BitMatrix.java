@@ -0,0 +1,127 @@
+import java.util.Arrays;
+
+/*
+    Immutable square of QR code modules, true - dark. Only the symbol itself is kept,
+    the quiet zone is added by the renderers.
+    Rows are packed into longs, every row takes whole words: module (x, y) is the bit x % 64
+    of words[y * wordsPerRow + x / 64], the bits beyond size are 0.
+*/
+public final class BitMatrix {
+    
+    @FunctionalInterface
+    public interface RunConsumer {
+        // Dark modules (x, y) - (x + length - 1, y)
+        void accept(int x, int y, int length);
+    }
+    
+    private final int size;
+    private final int wordsPerRow;
+    private final long[] words;
+    
+    // The words are not copied, they must not be changed after
+    BitMatrix(int size, long[] words) {
+        if (size <= 0)
+            throw new IllegalArgumentException("The size of a matrix must be positive, but was " + size + ".");
+        this.size = size;
+        wordsPerRow = wordsPerRow(size);
+        if (words.length != size * wordsPerRow)
+            throw new IllegalArgumentException("The matrix " + size + "x" + size + " needs " + size * wordsPerRow + " words, but got " + words.length + ".");
+        this.words = words;
+    }
+    
+    static int wordsPerRow(int size) {
+        return (size + 63) >>> 6;
+    }
+    
+    public int getSize() {
+        return size;
+    }
+    
+    public boolean get(int x, int y) {
+        checkIndex(x);
+        checkIndex(y);
+        return (words[y * wordsPerRow + (x >>> 6)] >>> x & 1L) != 0;
+    }
+    
+    // Copy of the row y, the bit x % 64 of the word x / 64 is module (x, y)
+    public long[] getRow(int y) {
+        checkIndex(y);
+        return Arrays.copyOfRange(words, y * wordsPerRow, (y + 1) * wordsPerRow);
+    }
+    
+    // The first dark module of the row y at x >= from, or size if there is none
+    public int nextDark(int y, int from) {
+        return next(y, from, 0L);
+    }
+    
+    // The first light module of the row y at x >= from, or size if there is none
+    public int nextLight(int y, int from) {
+        return next(y, from, -1L);
+    }
+    
+    private int next(int y, int from, long flip) {
+        checkIndex(y);
+        if (from >= size) return size;
+        int row = y * wordsPerRow;
+        int w = Math.max(0, from) >>> 6;
+        long word = (words[row + w] ^ flip) & (-1L << Math.max(0, from));
+        while (word == 0L) {
+            if (++w == wordsPerRow) return size;
+            word = words[row + w] ^ flip;
+        }
+        return Math.min(size, (w << 6) + Long.numberOfTrailingZeros(word));
+    }
+    
+    // Horizontal runs of dark modules row by row, from the top left corner
+    public void forEachDarkRun(RunConsumer consumer) {
+        for (int y = 0; y < size; y++) {
+            int x = nextDark(y, 0);
+            while (x < size) {
+                int end = nextLight(y, x);
+                consumer.accept(x, y, end - x);
+                x = nextDark(y, end);
+            }
+        }
+    }
+    
+    public int countDark() {
+        int dark = 0;
+        for (long word: words) dark += Long.bitCount(word);
+        return dark;
+    }
+    
+    // Backing words, for reading only
+    long[] words() {
+        return words;
+    }
+    
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("Module index " + index + " is out of the matrix " + size + "x" + size + ".");
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof BitMatrix)) return false;
+        BitMatrix matrix = (BitMatrix) other;
+        return size == matrix.size && Arrays.equals(words, matrix.words);
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * size + Arrays.hashCode(words);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder matrix = new StringBuilder(size * (size + 1));
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                matrix.append(get(x, y) ? '@' : ' ');
+            }
+            matrix.append('\n');
+        }
+        return matrix.toString();
+    }
+}
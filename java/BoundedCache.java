@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+    Thread-safe cache holding about capacity entries, the least recently used ones are evicted.
+    Capacity 0 turns the cache off.
+    Reads don't lock: the entries are in a ConcurrentHashMap and a hit only stamps the time of the access on its entry.
+    The order of the accesses is made up only when the cache is over capacity: one thread takes the eviction lock,
+    sorts the entries by their stamps and removes the oldest ones down to 15/16 of the capacity, so the sorting
+    is paid once in capacity / 16 puts. The puts meanwhile don't wait for it unless the cache is twice over capacity,
+    so it may hold more entries than capacity until the eviction ends.
+*/
+class BoundedCache<K, V> {
+    
+    private static final class Node<V> {
+        final V value;
+        // System.nanoTime() of the last access, written without synchronization: a lost stamp only makes
+        // the entry look a little older
+        long accessed;
+        
+        Node(V value) {
+            this.value = value;
+            accessed = System.nanoTime();
+        }
+    }
+    
+    private final ConcurrentHashMap<K, Node<V>> entries = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile int capacity;
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    BoundedCache(int capacity) {
+        setCapacity(capacity);
+    }
+    
+    V get(K key) {
+        Node<V> node = capacity > 0 ? entries.get(key) : null;
+        if (node == null) {
+            misses.increment();
+            return null;
+        }
+        node.accessed = System.nanoTime();
+        hits.increment();
+        return node.value;
+    }
+    
+    void put(K key, V value) {
+        int capacity = this.capacity;
+        if (capacity == 0) return;
+        entries.put(key, new Node<>(value));
+        // The evicting thread checks again after unlocking for the puts that didn't get the lock meanwhile.
+        // At twice the capacity the puts wait for the lock, so a slow eviction doesn't let the cache grow without bound.
+        while (entries.size() > capacity) {
+            if (entries.size() - capacity > capacity) evictionLock.lock();
+            else if (!evictionLock.tryLock()) break;
+            try {
+                evict();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+    
+    int getCapacity() {
+        return capacity;
+    }
+    
+    void setCapacity(int capacity) {
+        if (capacity < 0)
+            throw new IllegalArgumentException("Cache capacity (" + capacity + ") must not be negative.");
+        evictionLock.lock();
+        try {
+            this.capacity = capacity;
+            if (capacity == 0) {
+                evictions.add(entries.size());
+                entries.clear();
+            } else if (entries.size() > capacity) {
+                evict();
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+    
+    void clear() {
+        entries.clear();
+    }
+    
+    CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+    
+    // Called under the eviction lock. Removes the least recently used entries down to 15/16 of the capacity.
+    private void evict() {
+        int target = capacity - capacity / 16;
+        List<Map.Entry<K, Node<V>>> snapshot = new ArrayList<>(entries.entrySet());
+        int excess = snapshot.size() - target;
+        if (excess <= 0) return;
+        // the stamps are copied, the hits go on changing them
+        long[] stamps = new long[snapshot.size()];
+        for (int i = 0; i < stamps.length; i++) stamps[i] = snapshot.get(i).getValue().accessed;
+        long[] sorted = stamps.clone();
+        Arrays.sort(sorted);
+        long newestEvicted = sorted[excess - 1];
+        for (int i = 0; i < stamps.length && excess > 0; i++) {
+            if (stamps[i] > newestEvicted) continue;
+            Map.Entry<K, Node<V>> eldest = snapshot.get(i);
+            // the entry may have been replaced or removed meanwhile
+            if (entries.remove(eldest.getKey(), eldest.getValue())) evictions.increment();
+            excess--;
+        }
+    }
+}
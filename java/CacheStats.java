@@ -0,0 +1,30 @@
+// Snapshot of the counters of a cache
+public final class CacheStats {
+    
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long size;
+    
+    CacheStats(long hits, long misses, long evictions, long size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+    
+    public long getHits() { return hits; }
+    public long getMisses() { return misses; }
+    public long getEvictions() { return evictions; }
+    public long getSize() { return size; }
+    
+    public double getHitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0.0 : (double) hits / requests;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("CacheStats[hits=%d, misses=%d, evictions=%d, size=%d]", hits, misses, evictions, size);
+    }
+}
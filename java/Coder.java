@@ -1,183 +1,113 @@
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Collections;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
 
 public class Coder {
     
-    public static final Map<Character, Integer> ALPHANUMERIC_MAP;
+    public static final String ALPHANUMERIC_CHARACTERS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ $%*+-./:";
+    
+    // Alphanumeric value of every ASCII character, -1 for characters out of the alphanumeric set
+    private static final byte[] ALPHANUMERIC_TABLE = new byte[128];
     static {
-        Map<Character, Integer> processingMap = new HashMap<>(45);
-        processingMap.put('0', 0);
-        processingMap.put('1', 1);
-        processingMap.put('2', 2);
-        processingMap.put('3', 3);
-        processingMap.put('4', 4);
-        processingMap.put('5', 5);
-        processingMap.put('6', 6);
-        processingMap.put('7', 7);
-        processingMap.put('8', 8);
-        processingMap.put('9', 9);
-        processingMap.put('A', 10);
-        processingMap.put('B', 11);
-        processingMap.put('C', 12);
-        processingMap.put('D', 13);
-        processingMap.put('E', 14);
-        processingMap.put('F', 15);
-        processingMap.put('G', 16);
-        processingMap.put('H', 17);
-        processingMap.put('I', 18);
-        processingMap.put('J', 19);
-        processingMap.put('K', 20);
-        processingMap.put('L', 21);
-        processingMap.put('M', 22);
-        processingMap.put('N', 23);
-        processingMap.put('O', 24);
-        processingMap.put('P', 25);
-        processingMap.put('Q', 26);
-        processingMap.put('R', 27);
-        processingMap.put('S', 28);
-        processingMap.put('T', 29);
-        processingMap.put('U', 30);
-        processingMap.put('V', 31);
-        processingMap.put('W', 32);
-        processingMap.put('X', 33);
-        processingMap.put('Y', 34);
-        processingMap.put('Z', 35);
-        processingMap.put(' ', 36);
-        processingMap.put('$', 37);
-        processingMap.put('%', 38);
-        processingMap.put('*', 39);
-        processingMap.put('+', 40);
-        processingMap.put('-', 41);
-        processingMap.put('.', 42);
-        processingMap.put('/', 43);
-        processingMap.put(':', 44);
-        ALPHANUMERIC_MAP = Collections.unmodifiableMap(processingMap);
+        Arrays.fill(ALPHANUMERIC_TABLE, (byte) -1);
+        for (int i = 0; i < ALPHANUMERIC_CHARACTERS.length(); i++) {
+            ALPHANUMERIC_TABLE[ALPHANUMERIC_CHARACTERS.charAt(i)] = (byte) i;
+        }
+    }
+    
+    public static int alphanumericValue(char c) {
+        return c < 128 ? ALPHANUMERIC_TABLE[c] : -1;
+    }
+    
+    public static boolean isAlphanumeric(CharSequence message) {
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c >= 128 || ALPHANUMERIC_TABLE[c] < 0) return false;
+        }
+        return true;
+    }
+    
+    // Common shape of the segment coders: writes mode indicator, length and data of message[from, to) into sink
+    @FunctionalInterface
+    interface SegmentCoder {
+        void encode(String message, int from, int to, int version, BitBuffer sink);
+    }
+    
+    public static void encodeNumeric(String message, int version, BitBuffer sink) {
+        encodeNumeric(message, 0, message.length(), version, sink);
     }
     
-    public static byte[] encodeNumeric(String message, int version) {
+    public static void encodeNumeric(String message, int from, int to, int version, BitBuffer sink) {
         
         checkVersion(version);
         
         // 1. Encoding method code
-        byte[] encodingMethod = new byte[]{0, 0, 0, 1};
+        sink.appendBits(0b0001, 4);
         
         // 2. Number of characters to be encoded 
-        byte[] numberOfCharacters = nOfCharacters(0b0001, message.length(), version);
+        nOfCharacters(0b0001, to - from, version, sink);
         
         // 3. Message encoding
-        byte[] encodedMessage = encodeNum(message);
-        
-        // 4. Concatenation
-        byte[] result = new byte[encodingMethod.length + numberOfCharacters.length + encodedMessage.length];
-        int resultPointer = 0;
-        for (int i = 0; i < encodingMethod.length; i++) {
-            result[resultPointer++] = encodingMethod[i];
-        }
-        for (int i = 0; i < numberOfCharacters.length; i++) {
-            result[resultPointer++] = numberOfCharacters[i];
-        }
-        for (int i = 0; i < encodedMessage.length; i++) {
-            result[resultPointer++] = encodedMessage[i];
-        }
-        
-        return result;
+        encodeNum(message, from, to, sink);
     }
     
-    public static byte[] encodeAlphanumeric(String message, int version) {
+    public static void encodeAlphanumeric(String message, int version, BitBuffer sink) {
+        encodeAlphanumeric(message, 0, message.length(), version, sink);
+    }
+    
+    public static void encodeAlphanumeric(String message, int from, int to, int version, BitBuffer sink) {
         
         checkVersion(version);
         
         // 1. Encoding method code
-        byte[] encodingMethod = new byte[]{0, 0, 1, 0};
+        sink.appendBits(0b0010, 4);
         
         // 2. Number of characters to be encoded 
-        byte[] numberOfCharacters = nOfCharacters(0b0010, message.length(), version);
+        nOfCharacters(0b0010, to - from, version, sink);
         
         // 3. Message encoding
-        byte[] encodedMessage = encodeAlphanum(message);
-        
-        // 4. Concatenation
-        byte[] result = new byte[encodingMethod.length + numberOfCharacters.length + encodedMessage.length];
-        int resultPointer = 0;
-        for (int i = 0; i < encodingMethod.length; i++) {
-            result[resultPointer++] = encodingMethod[i];
-        }
-        for (int i = 0; i < numberOfCharacters.length; i++) {
-            result[resultPointer++] = numberOfCharacters[i];
-        }
-        for (int i = 0; i < encodedMessage.length; i++) {
-            result[resultPointer++] = encodedMessage[i];
-        }
-        
-        return result;
+        encodeAlphanum(message, from, to, sink);
     }  
-        
-    public static byte[] encodeBinary(String message, int version) {
+    
+    public static void encodeBinary(String message, int version, BitBuffer sink) {
+        encodeBinary(message, 0, message.length(), version, sink, StandardCharsets.UTF_8);
+    }
+    
+    public static void encodeBinary(String message, int version, BitBuffer sink, Charset charset) {
+        encodeBinary(message, 0, message.length(), version, sink, charset);
+    }
+    
+    public static void encodeBinary(String message, int from, int to, int version, BitBuffer sink) {
+        encodeBinary(message, from, to, version, sink, StandardCharsets.UTF_8);
+    }
+    
+    public static void encodeBinary(String message, int from, int to, int version, BitBuffer sink, Charset charset) {
         
         checkVersion(version);
         
         // 1. Encoding method code
-        byte[] encodingMethod = new byte[]{0, 1, 0, 0};
+        sink.appendBits(0b0100, 4);
         
-        // 2. Number of characters to be encoded 
+        // 2. Number of bytes in the encoded sequence
         /*
             Binary encoding uses the number of bytes in the encoded sequence, 
             not the number of characters to be encoded. 
-            This information will be determined later. 
         */
+        int nOfBits = version < 10 ? 8 : 16;
         
         // 3. Message encoding
-        byte[] encodedMessage = encodeBin(message);
-        
-        // 2. Return to number of bytes in the encoded sequence
-        int nOfBytes = encodedMessage.length / 8;
-        byte[] numberOfBytesCode;
-        if (version < 10) {
-            numberOfBytesCode = new byte[8];
+        if (isSingleByte(message, from, to, charset)) {
+            sink.appendBits(to - from, nOfBits);
+            encodeLatin1(message, from, to, sink);
         } else {
-            numberOfBytesCode = new byte[16];
-        }
-        String binaryForm = Integer.toBinaryString(nOfBytes);
-        int binaryFormPointer = binaryForm.length() - 1;
-        int nbcPointer = numberOfBytesCode.length - 1;
-        while (nbcPointer > -1 && binaryFormPointer > -1) {
-            numberOfBytesCode[nbcPointer--] = (byte) Character.digit(binaryForm.charAt(binaryFormPointer--), 10);
-        }
-        while (nbcPointer > -1) {
-           numberOfBytesCode[nbcPointer--] = 0;
-        }
-        
-        // 4. Concatenation
-        byte[] result = new byte[encodingMethod.length + numberOfBytesCode.length + encodedMessage.length];
-        int resultPointer = 0;
-        for (int i = 0; i < encodingMethod.length; i++) {
-            result[resultPointer++] = encodingMethod[i];
-        }
-        for (int i = 0; i < numberOfBytesCode.length; i++) {
-            result[resultPointer++] = numberOfBytesCode[i];
-        }
-        for (int i = 0; i < encodedMessage.length; i++) {
-            result[resultPointer++] = encodedMessage[i];
-        }
-        
-        return result;
-    }
-    
-    static byte[] concat(byte[]... arrays) {
-        int length = 0;
-        for (byte[] array: arrays) length += array.length;
-        byte[] concated = new byte[length];
-        int cIndex = 0;
-        for (byte[] array: arrays) {
-            for (int aIndex = 0; aIndex < array.length; aIndex++) {
-                concated[cIndex++] = array[aIndex];
-            }
+            ByteBuffer bytes = BYTE_MODE_SCRATCH.get().encode(message, from, to, charset);
+            sink.appendBits(bytes.remaining(), nOfBits);
+            encodeBin(bytes, sink);
         }
-        return concated;
     }
     
     private static void checkVersion(int version) {
@@ -186,26 +116,26 @@ public class Coder {
                                                "Version number must be in range [1 - 40].");
     }
     
-    private static byte[] nOfCharacters(int encodingMethod, int length, int version) {
+    private static void nOfCharacters(int encodingMethod, int length, int version, BitBuffer sink) {
         
-        byte[] numberOfCharactersCode;
+        int nOfBits;
         
         /* Detailed code, the essence of what is happening:
         if (encodingMethod == 0b0001) {
             if (version < 10) {
-                numberOfCharactersCode = new byte[10];
+                nOfBits = 10;
             } else if (version < 27) {
-                numberOfCharactersCode = new byte[12];
+                nOfBits = 12;
             } else {
-                numberOfCharactersCode = new byte[14];
+                nOfBits = 14;
             }
         } else if (encodingMethod == 0b0010) {
             if (version < 10) {
-                numberOfCharactersCode = new byte[9];
+                nOfBits = 9;
             } else if (version < 27) {
-                numberOfCharactersCode = new byte[11];
+                nOfBits = 11;
             } else {
-                numberOfCharactersCode = new byte[13];
+                nOfBits = 13;
             }
         } else {
             throw new IllegalArgumentException("Wrong encoding method code: " + encodingMethod + ". " +
@@ -215,117 +145,114 @@ public class Coder {
         
         // Short code: 
         if (version < 10) {
-            numberOfCharactersCode = new byte[11 - encodingMethod];
+            nOfBits = 11 - encodingMethod;
         } else if (version < 27) {
-            numberOfCharactersCode = new byte[13 - encodingMethod];
+            nOfBits = 13 - encodingMethod;
         } else {
-            numberOfCharactersCode = new byte[15 - encodingMethod];
+            nOfBits = 15 - encodingMethod;
         }
         // Since the method is private, I take responsibility for using the correct encoding method codes. 
         
-        int nccPointer = numberOfCharactersCode.length - 1;
-        String binaryForm = Integer.toBinaryString(length);
-        for (int i = binaryForm.length() - 1; i > -1; i--) {
-            numberOfCharactersCode[nccPointer--] = (byte) Character.digit(binaryForm.charAt(i), 10);
-        }
-        while (nccPointer > -1) {
-           numberOfCharactersCode[nccPointer--] = 0;
-        }
-        
-        return numberOfCharactersCode;
+        sink.appendBits(length, nOfBits);
     }
     
-    private static byte[] encodeNum(String message) {
-        int length = message.length();
-        int encodedLength = length / 3 * 10;
-        if (length % 3 == 2) encodedLength += 7;
-        else if (length % 3 == 1) encodedLength += 4;
-        
-        byte[] encodedMessage = new byte[encodedLength];
-        int encodedPointer = 0;
-        
-        int from = 0;
-        int to = length < 3 ? length : 3;
-        while (to <= length) {
-            try {
-                int number = Integer.parseInt(message.substring(from, to));
-                int nBits = 10;
-                if (to - from == 2) nBits = 7;
-                else if (to - from == 1) nBits = 4;
-                StringBuilder binaryForm = new StringBuilder(Integer.toBinaryString(number));
-                while (binaryForm.length() < nBits) binaryForm.insert(0, "0");
-                for (int i = 0; i < binaryForm.length(); i++) {
-                    encodedMessage[encodedPointer++] = (byte) Character.digit(binaryForm.charAt(i), 10);
-                }
-                from = to;
-                to += 3;
-                if (to > length && from < length) to = length;
-            } catch (NumberFormatException nfe) {
+    // Groups of 3, 2 and 1 digits take 10, 7 and 4 bits
+    private static void encodeNum(String message, int from, int to, BitBuffer sink) {
+        int group = 0;
+        int digits = 0;
+        for (int i = from; i < to; i++) {
+            int digit = message.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
                 throw new IllegalArgumentException("The digital encoding method is not applicable for the message: \""
                                                    + message +
                                                    "\" because it contains characters other than digits.");
+            group = group * 10 + digit;
+            if (++digits == 3) {
+                sink.appendBits(group, 10);
+                group = 0;
+                digits = 0;
             }
         }
-        
-        return encodedMessage;
+        if (digits == 2) sink.appendBits(group, 7);
+        else if (digits == 1) sink.appendBits(group, 4);
     }
     
-    private static byte[] encodeAlphanum(String message) {
-        int length = message.length();
-        int encodedLength = length / 2 * 11 + length % 2 * 6;
-        
-        byte[] encodedMessage = new byte[encodedLength];
-        int encodedPointer = 0;
-        
-        int firstIndex = 0;
-        int secondIndex = length == 1 ? 0 : 1;
-        while (secondIndex < length) {
-            int number = ALPHANUMERIC_MAP.getOrDefault(message.charAt(firstIndex), -1);
-            if (number == -1)
-                throw new IllegalArgumentException("The alphanumeric encoding method is not applicable for the message: \""
-                                                   + message +
-                                                   "\" because it contains character '" + message.charAt(firstIndex) + "'.");
-            int nBits = 6;
-            if (secondIndex > firstIndex) {
-                int secondNumber = ALPHANUMERIC_MAP.getOrDefault(message.charAt(secondIndex), -1);
-                if (secondNumber == -1)
-                    throw new IllegalArgumentException("The alphanumeric encoding method is not applicable for the message: \""
-                                                       + message +
-                                                       "\" because it contains character '" + message.charAt(secondIndex) + "'.");
-                number = 45 * number + secondNumber;
-                nBits = 11;
-            }
-            StringBuilder binaryForm = new StringBuilder(Integer.toBinaryString(number));
-            while (binaryForm.length() < nBits) binaryForm.insert(0, "0");
-            for (int i = 0; i < binaryForm.length(); i++) {
-                encodedMessage[encodedPointer++] = (byte) Character.digit(binaryForm.charAt(i), 10);
-            }
-            firstIndex += 2;
-            secondIndex += 2;
-            if (secondIndex == length) secondIndex = firstIndex;
+    // Pairs of characters take 11 bits (45 * first + second), the odd last character takes 6 bits
+    private static void encodeAlphanum(String message, int from, int to, BitBuffer sink) {
+        int pairsEnd = to - (to - from) % 2;
+        for (int i = from; i < pairsEnd; i += 2) {
+            sink.appendBits(45 * alphanumericValue(message, i) + alphanumericValue(message, i + 1), 11);
         }
-        
-        return encodedMessage;
+        if (pairsEnd < to) {
+            sink.appendBits(alphanumericValue(message, pairsEnd), 6);
+        }
+    }
+    
+    private static int alphanumericValue(String message, int index) {
+        int value = alphanumericValue(message.charAt(index));
+        if (value < 0)
+            throw new IllegalArgumentException("The alphanumeric encoding method is not applicable for the message: \""
+                                               + message +
+                                               "\" because it contains character '" + message.charAt(index) + "'.");
+        return value;
     }
     
-    private static byte[] encodeBin(String message) {
-        try {
-            ArrayList<Byte> boofer = new ArrayList<>(message.length() * 16);
-            for (byte b: message.getBytes("UTF-8")) {
-                StringBuilder binaryForm = new StringBuilder(Integer.toBinaryString(Byte.toUnsignedInt(b)));
-                while (binaryForm.length() < 8) binaryForm.insert(0, "0");
-                for (int i = 0; i < binaryForm.length(); i++) {
-                    boofer.add((byte) Character.digit(binaryForm.charAt(i), 10));
-                }
+    // Every char is one byte: ISO-8859-1 text below 0x100, or ASCII text in an ASCII compatible charset
+    private static boolean isSingleByte(String message, int from, int to, Charset charset) {
+        int limit;
+        if (StandardCharsets.ISO_8859_1.equals(charset)) limit = 0x100;
+        else if (StandardCharsets.UTF_8.equals(charset) || StandardCharsets.US_ASCII.equals(charset)) limit = 0x80;
+        else return false;
+        for (int i = from; i < to; i++) {
+            if (message.charAt(i) >= limit) return false;
+        }
+        return true;
+    }
+    
+    private static void encodeLatin1(String message, int from, int to, BitBuffer sink) {
+        for (int i = from; i < to; i++) {
+            sink.appendBits(message.charAt(i), 8);
+        }
+    }
+    
+    private static void encodeBin(ByteBuffer bytes, BitBuffer sink) {
+        while (bytes.hasRemaining()) {
+            sink.appendBits(bytes.get(), 8);
+        }
+    }
+    
+    private static final ThreadLocal<ByteModeScratch> BYTE_MODE_SCRATCH = ThreadLocal.withInitial(ByteModeScratch::new);
+    
+    // Per-thread encoder, input and output buffers, reused from message to message
+    private static final class ByteModeScratch {
+        private CharsetEncoder encoder;
+        private char[] chars = new char[1024];
+        private CharBuffer input = CharBuffer.wrap(chars);
+        private ByteBuffer buffer = ByteBuffer.allocate(1024);
+        
+        ByteBuffer encode(String message, int from, int to, Charset charset) {
+            if (encoder == null || !encoder.charset().equals(charset)) {
+                // Same replacement behavior as String.getBytes
+                encoder = charset.newEncoder()
+                                 .onMalformedInput(CodingErrorAction.REPLACE)
+                                 .onUnmappableCharacter(CodingErrorAction.REPLACE);
             }
-            byte[] encodedMessage = new byte[boofer.size()];
-            int encodedPointer = 0;
-            for (Byte b: boofer) {
-                encodedMessage[encodedPointer++] = b;
+            int length = to - from;
+            if (chars.length < length) {
+                chars = new char[length];
+                input = CharBuffer.wrap(chars);
             }
-            return encodedMessage;
-        } catch (UnsupportedEncodingException e) {
-            throw new IllegalArgumentException("The UTF-8 encoding method is not applicable for the message: \"" + message + "\"");
+            // CharBuffer.wrap(message) would be a new buffer for every message
+            message.getChars(from, to, chars, 0);
+            input.clear().limit(length);
+            int maxLength = (int) Math.ceil(length * (double) encoder.maxBytesPerChar());
+            if (buffer.capacity() < maxLength) buffer = ByteBuffer.allocate(maxLength);
+            buffer.clear();
+            encoder.reset();
+            encoder.encode(input, buffer, true);
+            encoder.flush(buffer);
+            buffer.flip();
+            return buffer;
         }
     }
     
@@ -333,27 +260,115 @@ public class Coder {
     public static void main(String[] args) {
         
         { // Numeric coding simple test
-            byte[] test = encodeNum("12345678");
+            BitBuffer test = new BitBuffer();
+            encodeNum("12345678", 0, 8, test);
             byte[] mustBe = new byte[]{0,0,0,1,1,1,1,0,1,1,0,1,1,1,0,0,1,0,0,0,1,0,0,1,1,1,0};
             testByteArrays("Numeric simple test", test, mustBe);
         }
         
         
         { // Alphanumeric coding simple test
-            byte[] test = encodeAlphanum("HELLO");
+            BitBuffer test = new BitBuffer();
+            encodeAlphanum("HELLO", 0, 5, test);
             byte[] mustBe = new byte[]{0,1,1,0,0,0,0,1,0,1,1,0,1,1,1,1,0,0,0,1,1,0,0,1,1,0,0,0};
             testByteArrays("Alphanumeric simple test", test, mustBe);
         }
         
         { // Binary coding simple test
-            byte[] test = encodeBin("Хабр");
-            byte[] mustBe = new byte[]{1,1,0,1,0,0,0,0,1,0,1,0,0,1,0,1,1,1,0,1,0,0,0,0,1,0,1,1,0,0,0,0,1,1,0,1,0,0,0,0,1,0,1,1,0,0,0,1,1,1,0,1,0,0,0,1,1,0,0,0,0,0,0,0};
+            BitBuffer test = new BitBuffer();
+            encodeBinary("Хабр", 1, test);
+            byte[] mustBe = new byte[]{0,1,0,0,0,0,0,0,1,0,0,0,
+                                       1,1,0,1,0,0,0,0,1,0,1,0,0,1,0,1,1,1,0,1,0,0,0,0,1,0,1,1,0,0,0,0,1,1,0,1,0,0,0,0,1,0,1,1,0,0,0,1,1,1,0,1,0,0,0,1,1,0,0,0,0,0,0,0};
             testByteArrays("Binary simple test", test, mustBe);
         }
         
+        { // Binary ISO-8859-1 coding simple test
+            BitBuffer test = new BitBuffer();
+            encodeBinary("Hé", 1, test, StandardCharsets.ISO_8859_1);
+            byte[] mustBe = new byte[]{0,1,0,0,0,0,0,0,0,0,1,0,0,1,0,0,1,0,0,0,1,1,1,0,1,0,0,1};
+            testByteArrays("Binary ISO-8859-1 test", test, mustBe);
+        }
+        
+        { // Numeric coding allocation benchmark
+            StringBuilder digits = new StringBuilder();
+            while (digits.length() < 1000) digits.append("0123456789");
+            String message = digits.toString();
+            BitBuffer sink = new BitBuffer(4096);
+            testAllocation("Numeric allocation test", () -> {
+                sink.clear();
+                encodeNumeric(message, 40, sink);
+            });
+        }
+        
+        { // Alphanumeric coding allocation benchmark
+            StringBuilder characters = new StringBuilder();
+            while (characters.length() < 1000) characters.append(ALPHANUMERIC_CHARACTERS);
+            String message = characters.toString();
+            BitBuffer sink = new BitBuffer(8192);
+            testAllocation("Alphanumeric allocation test", () -> {
+                sink.clear();
+                encodeAlphanumeric(message, 40, sink);
+            });
+        }
+        
+        { // Binary coding allocation benchmark
+            StringBuilder characters = new StringBuilder();
+            while (characters.length() < 1000) characters.append("https://wrabzy.github.io/?q=");
+            String message = characters.toString();
+            BitBuffer sink = new BitBuffer(16384);
+            testAllocation("Binary allocation test", () -> {
+                sink.clear();
+                encodeBinary(message, 40, sink);
+            });
+        }
+        
+        { // Binary UTF-8 coding allocation benchmark, the characters out of ASCII go through the charset encoder
+            StringBuilder characters = new StringBuilder();
+            while (characters.length() < 600) characters.append("Привет, Хабр! ");
+            String message = characters.toString();
+            BitBuffer sink = new BitBuffer(16384);
+            testAllocation("Binary UTF-8 allocation test", () -> {
+                sink.clear();
+                encodeBinary(message, 40, sink);
+            });
+        }
+        
+        { // Binary ISO-8859-1 coding allocation benchmark
+            StringBuilder characters = new StringBuilder();
+            while (characters.length() < 1000) characters.append("Café crème à Noël. ");
+            String message = characters.toString();
+            BitBuffer sink = new BitBuffer(16384);
+            testAllocation("Binary ISO-8859-1 allocation test", () -> {
+                sink.clear();
+                encodeBinary(message, 40, sink, StandardCharsets.ISO_8859_1);
+            });
+        }
+    
     }
     
-    private static void testByteArrays(String testName, byte[] test, byte[] mustBe) {
+    private static void testAllocation(String testName, Runnable call) {
+        java.lang.management.ThreadMXBean threads = java.lang.management.ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            System.out.printf("%s: skipped, allocation counters are not supported%n", testName);
+            return;
+        }
+        com.sun.management.ThreadMXBean allocations = (com.sun.management.ThreadMXBean) threads;
+        int calls = 100_000;
+        for (int i = 0; i < calls; i++) call.run();
+        long threadId = Thread.currentThread().getId();
+        long bytesBefore = allocations.getThreadAllocatedBytes(threadId);
+        long timeBefore = System.nanoTime();
+        for (int i = 0; i < calls; i++) call.run();
+        long time = System.nanoTime() - timeBefore;
+        long bytes = allocations.getThreadAllocatedBytes(threadId) - bytesBefore;
+        System.out.printf("%s: %s (%d bytes/call, %d ns/call)%n", testName, (bytes / calls == 0 ? "ok" : "failed"), bytes / calls, time / calls);
+    }
+    
+    private static void testByteArrays(String testName, BitBuffer bits, byte[] mustBe) {
+        byte[] test = new byte[bits.size()];
+        for (int i = 0; i < test.length; i++) {
+            test[i] = (byte) bits.getBit(i);
+        }
         System.out.printf("%s: %s%n", testName, (Arrays.equals(test, mustBe) ? "ok" : "failed"));
         if (!Arrays.equals(test, mustBe)) {
             System.out.println("recd: " + Arrays.toString(test));
@@ -1,100 +1,158 @@
-import java.util.Map;
-import java.util.HashMap;
-import java.util.Collections;
 import java.util.Arrays;
+import java.util.Random;
 
 class Corrector {
-    public static final Map<Integer, int[]> GENERATING_POLYNOMIAL;
+    // Generating polynomials (exponents of alpha, without the leading x^n) by the number of correction bytes
+    public static final int[][] GENERATING_POLYNOMIAL = new int[31][];
     static {
-        Map<Integer, int[]> processingMap = new HashMap<>(13);
-        processingMap.put(7, new int[]{87, 229, 146, 149, 238, 102, 21});
-        processingMap.put(10, new int[]{251, 67, 46, 61, 118, 70, 64, 94, 32, 45});
-        processingMap.put(13, new int[]{74, 152, 176, 100, 86, 100, 106, 104, 130, 218, 206, 140, 78});
-        processingMap.put(15, new int[]{8, 183, 61, 91, 202, 37, 51, 58, 58, 237, 140, 124, 5, 99, 105});
-        processingMap.put(16, new int[]{120, 104, 107, 109, 102, 161, 76, 3, 91, 191, 147, 169, 182, 194, 225, 120});
-        processingMap.put(17, new int[]{43, 139, 206, 78, 43, 239, 123, 206, 214, 147, 24, 99, 150, 39, 243, 163, 136});
-        processingMap.put(18, new int[]{215, 234, 158, 94, 184, 97, 118, 170, 79, 187, 152, 148, 252, 179, 5, 98, 96, 153});
-        processingMap.put(20, new int[]{17, 60, 79, 50, 61, 163, 26, 187, 202, 180, 221, 225, 83, 239, 156, 164, 212, 212, 188, 190});
-        processingMap.put(22, new int[]{210, 171, 247, 242, 93, 230, 14, 109, 221, 53, 200, 74, 8, 172, 98, 80, 219, 134, 160, 105, 165, 231});
-        processingMap.put(24, new int[]{229, 121, 135, 48, 211, 117, 251, 126, 159, 180, 169, 152, 192, 226, 228, 218, 111, 0, 117, 232, 87, 96, 227, 21});
-        processingMap.put(26, new int[]{173, 125, 158, 2, 103, 182, 118, 17, 145, 201, 111, 28, 165, 53, 161, 21, 245, 142, 13, 102, 48, 227, 153, 145, 218, 70});
-        processingMap.put(28, new int[]{168, 223, 200, 104, 224, 234, 108, 180, 110, 190, 195, 147, 205, 27, 232, 201, 21, 43, 245, 87, 42, 195, 212, 119, 242, 37, 9, 123});
-        processingMap.put(30, new int[]{41, 173, 145, 152, 216, 31, 179, 182, 50, 48, 110, 86, 239, 96, 222, 125, 42, 173, 226, 193, 224, 130, 156, 37, 251, 216, 238, 40, 192, 180});
-        GENERATING_POLYNOMIAL = Collections.unmodifiableMap(processingMap);
+        GENERATING_POLYNOMIAL[7] = new int[]{87, 229, 146, 149, 238, 102, 21};
+        GENERATING_POLYNOMIAL[10] = new int[]{251, 67, 46, 61, 118, 70, 64, 94, 32, 45};
+        GENERATING_POLYNOMIAL[13] = new int[]{74, 152, 176, 100, 86, 100, 106, 104, 130, 218, 206, 140, 78};
+        GENERATING_POLYNOMIAL[15] = new int[]{8, 183, 61, 91, 202, 37, 51, 58, 58, 237, 140, 124, 5, 99, 105};
+        GENERATING_POLYNOMIAL[16] = new int[]{120, 104, 107, 109, 102, 161, 76, 3, 91, 191, 147, 169, 182, 194, 225, 120};
+        GENERATING_POLYNOMIAL[17] = new int[]{43, 139, 206, 78, 43, 239, 123, 206, 214, 147, 24, 99, 150, 39, 243, 163, 136};
+        GENERATING_POLYNOMIAL[18] = new int[]{215, 234, 158, 94, 184, 97, 118, 170, 79, 187, 152, 148, 252, 179, 5, 98, 96, 153};
+        GENERATING_POLYNOMIAL[20] = new int[]{17, 60, 79, 50, 61, 163, 26, 187, 202, 180, 221, 225, 83, 239, 156, 164, 212, 212, 188, 190};
+        GENERATING_POLYNOMIAL[22] = new int[]{210, 171, 247, 242, 93, 230, 14, 109, 221, 53, 200, 74, 8, 172, 98, 80, 219, 134, 160, 105, 165, 231};
+        GENERATING_POLYNOMIAL[24] = new int[]{229, 121, 135, 48, 211, 117, 251, 126, 159, 180, 169, 152, 192, 226, 228, 218, 111, 0, 117, 232, 87, 96, 227, 21};
+        GENERATING_POLYNOMIAL[26] = new int[]{173, 125, 158, 2, 103, 182, 118, 17, 145, 201, 111, 28, 165, 53, 161, 21, 245, 142, 13, 102, 48, 227, 153, 145, 218, 70};
+        GENERATING_POLYNOMIAL[28] = new int[]{168, 223, 200, 104, 224, 234, 108, 180, 110, 190, 195, 147, 205, 27, 232, 201, 21, 43, 245, 87, 42, 195, 212, 119, 242, 37, 9, 123};
+        GENERATING_POLYNOMIAL[30] = new int[]{41, 173, 145, 152, 216, 31, 179, 182, 50, 48, 110, 86, 239, 96, 222, 125, 42, 173, 226, 193, 224, 130, 156, 37, 251, 216, 238, 40, 192, 180};
     }
     private static final int[][] GF = generateGF();
-
+    
+    /*
+        Products of every byte value with the coefficients of the generating polynomial:
+        GENERATOR_PRODUCTS[n][a * n + j] = a * g[j] for the polynomial with n correction bytes.
+    */
+    private static final byte[][] GENERATOR_PRODUCTS = new byte[GENERATING_POLYNOMIAL.length][];
+    static {
+        for (int n = 0; n < GENERATING_POLYNOMIAL.length; n++) {
+            int[] generatingPolynomial = GENERATING_POLYNOMIAL[n];
+            if (generatingPolynomial == null) continue;
+            byte[] products = new byte[256 * n];
+            for (int a = 1; a < 256; a++) {
+                int b = GF[1][a];
+                for (int j = 0; j < n; j++) {
+                    products[a * n + j] = (byte) GF[0][(generatingPolynomial[j] + b) % 255];
+                }
+            }
+            GENERATOR_PRODUCTS[n] = products;
+        }
+    }
+    
+    // Common shape of the Reed-Solomon implementations, see makeCorrectionBytes
+    @FunctionalInterface
+    interface BlockCorrector {
+        void makeCorrectionBytes(byte[] data, int from, int length, byte[] correction, int correctionFrom, int n);
+    }
+    
+    static final BlockCorrector SCALAR = Corrector::makeCorrectionBytes;
+    // null if the jdk.incubator.vector module is not present
+    static final BlockCorrector VECTOR = loadVectorCorrector();
+    
+    // The vector implementation (when present) is used from this version on, 41 turns it off.
+    // CorrectorBenchmark with 256-bit vectors (JDK 17, x86-64): 1.6 times faster at version 1 L (252 vs 416 ns),
+    // 2.4 times at 1 H and 2.8-3.7 times at 40, so the crossover is version 1. Narrower vectors may want more.
+    private static final int VECTOR_FROM_VERSION = Integer.getInteger("xyz.wrabzy.qrcode.vectorCorrectionFromVersion", 1);
+    
+    private static BlockCorrector loadVectorCorrector() {
+        if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) return null;
+        try {
+            return (BlockCorrector) Class.forName("VectorCorrector").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+    
+    // Blocks and correction blocks are codewords (one byte per codeword)
     public static byte[][] makeCorrectionBlocks(byte[][] blocks, Level level, int version) {
-        
+        BlockCorrector corrector = VECTOR != null && version >= VECTOR_FROM_VERSION ? VECTOR : SCALAR;
+        int needToCreateCorrectionBytes = level.getCorrectionBytesPerBlock(version);
+        byte[][] correctionBlocks = new byte[blocks.length][needToCreateCorrectionBytes];
+        for (int i = 0; i < blocks.length; i++) {
+            corrector.makeCorrectionBytes(blocks[i], 0, blocks[i].length, correctionBlocks[i], 0, needToCreateCorrectionBytes);
+        }
+        return correctionBlocks;
+    }
+    
+    // Correction codewords of data, the codewords of all the blocks one after another (the shorter blocks first).
+    // The correction blocks are written to correction one after another.
+    public static void makeCorrectionBlocks(byte[] data, Level level, int version, byte[] correction) {
+        BlockCorrector corrector = VECTOR != null && version >= VECTOR_FROM_VERSION ? VECTOR : SCALAR;
         int needToCreateCorrectionBytes = level.getCorrectionBytesPerBlock(version);
-        int[] generatingPolynomial = GENERATING_POLYNOMIAL.get(needToCreateCorrectionBytes);
-        int[][] correctionBlocks = new int[blocks.length][needToCreateCorrectionBytes];
-        int correctionBlocksPointer = 0;
+        int nOfBlocks = level.howManyBlocks(version);
+        int bytes = level.getSize(version) / 8;
+        int dataPointer = 0;
+        for (int i = 0; i < nOfBlocks; i++) {
+            int thisBlockLength = bytes / nOfBlocks + (i >= nOfBlocks - bytes % nOfBlocks ? 1 : 0);
+            corrector.makeCorrectionBytes(data, dataPointer, thisBlockLength, correction, i * needToCreateCorrectionBytes, needToCreateCorrectionBytes);
+            dataPointer += thisBlockLength;
+        }
+    }
+    
+    // Product of two elements of GF(256)
+    static int multiply(int a, int b) {
+        if (a == 0 || b == 0) return 0;
+        return GF[0][(GF[1][a] + GF[1][b]) % 255];
+    }
+    
+    // Coefficients of the generating polynomial with n correction bytes as elements of GF(256), null if there is none
+    static int[] generatingPolynomial(int n) {
+        if (n >= GENERATING_POLYNOMIAL.length || GENERATING_POLYNOMIAL[n] == null) return null;
+        int[] coefficients = new int[n];
+        for (int j = 0; j < n; j++) {
+            coefficients[j] = GF[0][GENERATING_POLYNOMIAL[n][j]];
+        }
+        return coefficients;
+    }
+    
+    /*
+        Remainder of data[from, from + length) * x^n divided by the generating polynomial,
+        written to correction[correctionFrom, correctionFrom + n).
+        The remainder is kept in a ring of n registers (an LFSR): register head leaves the 
+        ring at every data byte, so nothing has to be shifted.
+    */
+    public static void makeCorrectionBytes(byte[] data, int from, int length, byte[] correction, int correctionFrom, int n) {
+        byte[] products = n < GENERATOR_PRODUCTS.length ? GENERATOR_PRODUCTS[n] : null;
+        if (products == null) 
+            throw new IllegalArgumentException("There is no generating polynomial for " + n + " correction bytes.");
         
-        for(byte[] block: blocks) {
-            int bytesInBlock = block.length / 8;
-            int arrLength = bytesInBlock > needToCreateCorrectionBytes ? bytesInBlock : needToCreateCorrectionBytes;
-            int[] array = new int[arrLength];
-            int blockPointer = 0;
-            int arrayPointer = 0;
-            int nextByte = 0;
-            while (blockPointer < block.length) {
-                if (block[blockPointer] == 1) {
-                    nextByte += (int) Math.pow(2, 7 - blockPointer % 8);
-                }
-                blockPointer++;
-                if (blockPointer % 8 == 0) {
-                    array[arrayPointer++] = nextByte;
-                    nextByte = 0;
-                }
-            }
-            while (arrayPointer < arrLength) {
-                array[arrayPointer++] = 0;
-            }
-            for (int i = 0; i < bytesInBlock; i++) {
-                int a = array[0];
-                System.out.println("a = " + a);
-                for (int j = 0; j < arrLength - 1; j++) {
-                    array[j] = array[j + 1];
+        int correctionTo = correctionFrom + n;
+        Arrays.fill(correction, correctionFrom, correctionTo, (byte) 0);
+        int head = correctionFrom;
+        for (int i = from; i < from + length; i++) {
+            int a = (data[i] ^ correction[head]) & 0xFF;
+            correction[head] = 0;
+            if (++head == correctionTo) head = correctionFrom;
+            if (a != 0) {
+                int product = a * n;
+                int split = correctionTo - head;
+                for (int j = 0; j < split; j++) {
+                    correction[head + j] ^= products[product + j];
                 }
-                array[arrLength - 1] = 0;
-                if (a != 0) {
-                    int b = GF[1][a];
-                    for (int j = 0; j < needToCreateCorrectionBytes; j++) {
-                        int c = generatingPolynomial[j] + b;
-                        if (c > 254) c %= 255;
-                        array[j] ^= GF[0][c];
-                    }
-                    /*for (int j = 0; j < array.length; j++) {
-                        int c = generatingPolynomial[j] + b;
-                        if (c > 254) c %= 255;
-                        array[j] ^= GF[0][c];
-                    }*/
+                for (int j = split; j < n; j++) {
+                    correction[correctionFrom + j - split] ^= products[product + j];
                 }
             }
-            correctionBlocks[correctionBlocksPointer++] = Arrays.copyOf(array, needToCreateCorrectionBytes);
         }
-        
-        byte[][] correctionBlocksInBits = new byte[correctionBlocks.length][];
-        for (int i = 0; i < correctionBlocksInBits.length; i++) {
-            correctionBlocksInBits[i] = new byte[correctionBlocks[i].length * 8];
-            int correctionBlocksInBitsPointer = 0;
-            for (int j = 0; j < correctionBlocks[i].length; j++) {
-                int nextByte = correctionBlocks[i][j];
-                int counter = 7;
-                while (counter > -1) {
-                    int twoPow = (int) Math.pow(2, counter--);
-                    if (nextByte >= twoPow) {
-                        correctionBlocksInBits[i][correctionBlocksInBitsPointer++] = 1;
-                        nextByte -= twoPow;
-                    } else {
-                        correctionBlocksInBits[i][correctionBlocksInBitsPointer++] = 0;
-                    }
-                }
-            }
+        // the register head holds the highest coefficient
+        rotate(correction, correctionFrom, correctionTo, head);
+    }
+    
+    // Rotates array[from, to) left so that array[middle] becomes array[from]
+    private static void rotate(byte[] array, int from, int to, int middle) {
+        reverse(array, from, middle);
+        reverse(array, middle, to);
+        reverse(array, from, to);
+    }
+    
+    private static void reverse(byte[] array, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            byte swap = array[i];
+            array[i] = array[j];
+            array[j] = swap;
         }
-        
-        return correctionBlocksInBits;
     }
     
     public static int[][] generateGF() {
@@ -136,60 +194,45 @@ class Corrector {
     
     public static void main(String[] args) {
         { // Simple test
-            byte[][] testBlocks = new byte[][]{{0,1,0,0,0,0,0,0,
-                                                1,1,0,0,0,1,0,0,
-                                                1,0,0,0,0,1,0,0,
-                                                0,1,0,1,0,1,0,0,
-                                                1,1,0,0,0,1,0,0,
-                                                1,1,0,0,0,1,0,0,
-                                                1,1,1,1,0,0,1,0,
-                                                1,1,0,0,0,0,1,0,
-                                                0,0,0,0,0,1,0,0,
-                                                1,0,0,0,0,1,0,0,
-                                                0,0,0,1,0,1,0,0,
-                                                0,0,1,0,0,1,0,1,
-                                                0,0,1,0,0,0,1,0,
-                                                0,0,0,1,0,0,0,0,
-                                                1,1,1,0,1,1,0,0,
-                                                0,0,0,1,0,0,0,1}};
+            byte[][] testBlocks = new byte[][]{codewords(64, 196, 132, 84, 196, 196, 242, 194, 4, 132, 20, 37, 34, 16, 236, 17)};
             Level testLevel = Level.H;
             int testVersion = 2;
             byte[][] test = makeCorrectionBlocks(testBlocks, testLevel, testVersion);
-            byte[][] mustBe = new byte[][]{{0,0,0,1,0,0,0,0,
-                                           0,1,0,1,0,1,0,1,
-                                           0,0,0,0,1,1,0,0,
-                                           1,1,1,0,0,1,1,1,
-                                           0,0,1,1,0,1,1,0,
-                                           0,0,1,1,0,1,1,0,
-                                           1,0,0,0,1,1,0,0,
-                                           0,1,0,0,0,1,1,0,
-                                           0,1,1,1,0,1,1,0,
-                                           0,1,0,1,0,1,0,0,
-                                           0,0,0,0,1,0,1,0,
-                                           1,0,1,0,1,1,1,0,
-                                           1,1,1,0,1,0,1,1,
-                                           1,1,0,0,0,1,0,1,
-                                           0,1,1,0,0,0,1,1,
-                                           1,1,0,1,1,0,1,0,
-                                           0,0,0,0,1,1,0,0,
-                                           1,1,1,1,1,1,1,0,
-                                           1,1,1,1,0,1,1,0,
-                                           0,0,0,0,0,1,0,0,
-                                           1,0,1,1,1,1,1,0,
-                                           0,0,1,1,1,0,0,0,
-                                           0,0,1,0,0,1,1,1,
-                                           1,1,0,1,1,0,0,1,
-                                           0,1,1,1,0,0,1,1,
-                                           1,0,1,1,1,1,0,1,
-                                           1,1,0,0,0,0,0,1,
-                                           0,0,0,1,1,0,0,0}};
+            byte[][] mustBe = new byte[][]{codewords(16, 85, 12, 231, 54, 54, 140, 70, 118, 84, 10, 174, 235, 197,
+                                                     99, 218, 12, 254, 246, 4, 190, 56, 39, 217, 115, 189, 193, 24)};
             testByteArrays("Numeric simple test", test, mustBe);
         }
+        
+        if (VECTOR != null) { // Vector test: the same codewords as the scalar implementation
+            Random random = new Random(42);
+            boolean allEqual = true;
+            for (int version = 1; version <= 40; version++) {
+                for (Level level: Level.values()) {
+                    int n = level.getCorrectionBytesPerBlock(version);
+                    byte[] data = new byte[level.getSize(version) / 8];
+                    random.nextBytes(data);
+                    byte[] scalar = new byte[n];
+                    byte[] vector = new byte[n];
+                    SCALAR.makeCorrectionBytes(data, 0, data.length / level.howManyBlocks(version), scalar, 0, n);
+                    VECTOR.makeCorrectionBytes(data, 0, data.length / level.howManyBlocks(version), vector, 0, n);
+                    allEqual = allEqual && Arrays.equals(scalar, vector);
+                }
+            }
+            System.out.printf("%s: %s%n", "Vector test", allEqual ? "ok" : "failed");
+        }
+    }
+    
+    private static byte[] codewords(int... values) {
+        byte[] codewords = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            codewords[i] = (byte) values[i];
+        }
+        return codewords;
     }
     
     private static void testByteArrays(String testName, byte[][] test, byte[][] mustBe) {
         System.out.printf("%s: %s%n", testName, (Arrays.deepEquals(test, mustBe) ? "ok" : "failed"));
-        if (!Arrays.equals(test, mustBe)) {
+        if (!Arrays.deepEquals(test, mustBe)) {
             System.out.println("recd: " + Arrays.deepToString(test));
             System.out.println("instd:" + Arrays.deepToString(mustBe));
         }
@@ -0,0 +1,21 @@
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/*
+    Diagnostics of the encoding: the steps of the encoding with their details (segments, masks, the code).
+    Off while no listener is set (QRCode.setEncodeListener), then the messages are not even built.
+    The message is built only by message.get(), a listener may drop it for free. It must be got
+    before trace returns, the details are taken from the buffers of the encoder.
+    Called on the encoding threads, a listener must be thread safe.
+*/
+@FunctionalInterface
+public interface EncodeListener {
+    
+    // stage - method of the encoding the message comes from
+    void trace(String stage, Supplier<String> message);
+    
+    // Passes the messages to the logger at FINE level, no handlers are set up
+    static EncodeListener toLogger(Logger logger) {
+        return (stage, message) -> logger.fine(() -> "[" + stage + "] " + message.get());
+    }
+}
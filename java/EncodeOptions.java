@@ -0,0 +1,58 @@
+import java.util.concurrent.Executor;
+
+// Immutable settings of batch encoding, every with* method returns a changed copy
+public final class EncodeOptions {
+    
+    private static final EncodeOptions DEFAULTS = new EncodeOptions(null, 0, null, null);
+    
+    // null - the strongest level the message fits in
+    private final Level level;
+    // 0 - the smallest version the message fits in
+    private final int version;
+    // null - ForkJoinPool.commonPool()
+    private final Executor executor;
+    // null - the masks are tried one after another in the encoding thread
+    private final Executor maskExecutor;
+    
+    private EncodeOptions(Level level, int version, Executor executor, Executor maskExecutor) {
+        this.level = level;
+        this.version = version;
+        this.executor = executor;
+        this.maskExecutor = maskExecutor;
+    }
+    
+    public static EncodeOptions defaults() {
+        return DEFAULTS;
+    }
+    
+    public EncodeOptions withLevel(Level level) {
+        return new EncodeOptions(level, version, executor, maskExecutor);
+    }
+    
+    public EncodeOptions withVersion(int version) {
+        if (version < 0 || version > 40)
+            throw new IllegalArgumentException("Version number must be in range [1 - 40] or 0 for any version, but was " + version + ".");
+        return new EncodeOptions(level, version, executor, maskExecutor);
+    }
+    
+    // For example a fixed pool of platform threads (on Java 21+ also Executors.newVirtualThreadPerTaskExecutor())
+    public EncodeOptions withExecutor(Executor executor) {
+        return new EncodeOptions(level, version, executor, maskExecutor);
+    }
+    
+    // Tries the masks of every code in parallel on the executor (for example ForkJoinPool.commonPool()).
+    // It may be bounded and shared, the same as the executor of encodeAll too: the encoding thread tries the masks it doesn't take.
+    public EncodeOptions withMaskExecutor(Executor maskExecutor) {
+        return new EncodeOptions(level, version, executor, maskExecutor);
+    }
+    
+    public Level getLevel() { return level; }
+    public int getVersion() { return version; }
+    public Executor getExecutor() { return executor; }
+    public Executor getMaskExecutor() { return maskExecutor; }
+    
+    @Override
+    public String toString() {
+        return String.format("EncodeOptions[level=%s, version=%d, executor=%s, maskExecutor=%s]", level, version, executor, maskExecutor);
+    }
+}
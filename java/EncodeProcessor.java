@@ -0,0 +1,348 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Streaming encoder: messages from the upstream publisher are encoded on the executor of the options
+    and the results (index - position of the message in the stream) go to the single subscriber.
+    At most parallelism messages are encoded at once and at most maxInFlight messages are taken from
+    the upstream and not delivered yet, the upstream is asked for more only as the subscriber takes results.
+    Results are emitted in the order of the messages or as soon as they are ready.
+    A message that can't be encoded gets a failed result, an upstream error is passed on after
+    the results of the messages received before it.
+*/
+public final class EncodeProcessor implements Flow.Processor<String, EncodeResult> {
+    
+    private final EncodeOptions options;
+    private final Executor executor;
+    private final int parallelism;
+    private final int maxInFlight;
+    private final boolean ordered;
+    
+    // guarded by this
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super EncodeResult> downstream;
+    private long demand;
+    // requested from the upstream and not received yet
+    private long awaited;
+    private long received;
+    private final ArrayDeque<Long> waitingIndexes = new ArrayDeque<>();
+    private final ArrayDeque<String> waitingMessages = new ArrayDeque<>();
+    private int running;
+    // ordered - results by index, unordered - results in the order they are ready
+    private final Map<Long, EncodeResult> completed = new HashMap<>();
+    private final ArrayDeque<EncodeResult> ready = new ArrayDeque<>();
+    private long nextToEmit;
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    // bad request of the subscriber, ends the stream at once
+    private Throwable failure;
+    private boolean cancelled;
+    private boolean terminated;
+    
+    // only one thread emits, the others leave their work to it
+    private final AtomicInteger drainers = new AtomicInteger();
+    
+    public EncodeProcessor(EncodeOptions options) {
+        this(options, Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors(), true);
+    }
+    
+    public EncodeProcessor(EncodeOptions options, int parallelism, int maxInFlight, boolean ordered) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be positive, but was " + parallelism + ".");
+        if (maxInFlight < parallelism)
+            throw new IllegalArgumentException("Messages in flight (" + maxInFlight + ") can't be fewer than parallelism (" + parallelism + ").");
+        this.options = options;
+        executor = options.getExecutor() != null ? options.getExecutor() : ForkJoinPool.commonPool();
+        this.parallelism = parallelism;
+        this.maxInFlight = maxInFlight;
+        this.ordered = ordered;
+    }
+    
+    @Override
+    public void subscribe(Flow.Subscriber<? super EncodeResult> subscriber) {
+        boolean accepted;
+        synchronized (this) {
+            accepted = downstream == null;
+            if (accepted) downstream = subscriber;
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) {}
+                @Override public void cancel() {}
+            });
+            subscriber.onError(new IllegalStateException("The processor has a subscriber already."));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                if (n <= 0) {
+                    fail(new IllegalArgumentException("Requested " + n + " results, the number must be positive."));
+                    return;
+                }
+                synchronized (EncodeProcessor.this) {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                drain();
+            }
+            
+            @Override
+            public void cancel() {
+                Flow.Subscription subscription;
+                synchronized (EncodeProcessor.this) {
+                    cancelled = true;
+                    subscription = upstream;
+                }
+                if (subscription != null) subscription.cancel();
+                drain();
+            }
+        });
+        drain();
+    }
+    
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        boolean accepted;
+        synchronized (this) {
+            accepted = upstream == null && !cancelled;
+            if (accepted) upstream = subscription;
+        }
+        if (!accepted) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+    
+    @Override
+    public void onNext(String message) {
+        synchronized (this) {
+            if (upstreamDone || cancelled) return;
+            awaited--;
+            waitingIndexes.add(received++);
+            waitingMessages.add(message);
+        }
+        drain();
+    }
+    
+    @Override
+    public void onError(Throwable error) {
+        synchronized (this) {
+            if (upstreamDone) return;
+            upstreamDone = true;
+            upstreamError = error;
+        }
+        drain();
+    }
+    
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            if (upstreamDone) return;
+            upstreamDone = true;
+        }
+        drain();
+    }
+    
+    // Bad request from the subscriber: the upstream is cancelled and the subscriber gets the error
+    private void fail(Throwable error) {
+        Flow.Subscription subscription;
+        synchronized (this) {
+            subscription = upstream;
+            upstreamDone = true;
+            if (failure == null) failure = error;
+        }
+        if (subscription != null) subscription.cancel();
+        drain();
+    }
+    
+    private void encode(long index, String message) {
+        EncodeResult result = QRCode.encodeItem(index, message, options);
+        synchronized (this) {
+            running--;
+            if (terminated || cancelled) return;
+            if (ordered) completed.put(index, result);
+            else ready.add(result);
+        }
+        drain();
+    }
+    
+    private void drain() {
+        if (drainers.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            while (true) {
+                Flow.Subscription subscription = null;
+                long toRequest = 0;
+                Flow.Subscriber<? super EncodeResult> subscriber;
+                EncodeResult result = null;
+                boolean complete = false;
+                Throwable error = null;
+                long[] toStart;
+                String[] messagesToStart;
+                synchronized (this) {
+                    subscriber = downstream;
+                    if (cancelled) {
+                        waitingIndexes.clear();
+                        waitingMessages.clear();
+                        completed.clear();
+                        ready.clear();
+                        break;
+                    }
+                    if (subscriber == null || terminated) break;
+                    if (failure != null) {
+                        terminated = true;
+                        waitingIndexes.clear();
+                        waitingMessages.clear();
+                        completed.clear();
+                        ready.clear();
+                        error = failure;
+                        toStart = new long[0];
+                        messagesToStart = new String[0];
+                    } else {
+                        int starting = Math.min(parallelism - running, waitingIndexes.size());
+                        toStart = new long[Math.max(0, starting)];
+                        messagesToStart = new String[toStart.length];
+                        for (int i = 0; i < toStart.length; i++) {
+                            toStart[i] = waitingIndexes.poll();
+                            messagesToStart[i] = waitingMessages.poll();
+                        }
+                        running += toStart.length;
+                        
+                        if (demand > 0) {
+                            if (ordered) {
+                                result = completed.remove(nextToEmit);
+                                if (result != null) nextToEmit++;
+                            } else {
+                                result = ready.poll();
+                            }
+                            if (result != null) demand--;
+                        }
+                        
+                        long inFlight = awaited + waitingIndexes.size() + running + completed.size() + ready.size();
+                        if (!upstreamDone && upstream != null && inFlight < maxInFlight) {
+                            toRequest = maxInFlight - inFlight;
+                            awaited += toRequest;
+                            subscription = upstream;
+                        }
+                        if (upstreamDone && result == null && inFlight - awaited == 0) {
+                            terminated = true;
+                            complete = upstreamError == null;
+                            error = upstreamError;
+                        }
+                    }
+                }
+                
+                for (int i = 0; i < toStart.length; i++) {
+                    long index = toStart[i];
+                    String message = messagesToStart[i];
+                    try {
+                        executor.execute(() -> encode(index, message));
+                    } catch (RejectedExecutionException e) {
+                        synchronized (this) {
+                            running--;
+                            EncodeResult rejected = new EncodeResult(index, message, null, e);
+                            if (ordered) completed.put(index, rejected);
+                            else ready.add(rejected);
+                        }
+                    }
+                }
+                if (subscription != null) subscription.request(toRequest);
+                if (result != null) subscriber.onNext(result);
+                if (complete) subscriber.onComplete();
+                if (error != null) subscriber.onError(error);
+                if (result == null && toStart.length == 0 && subscription == null) break;
+            }
+            missed = drainers.addAndGet(-missed);
+        } while (missed != 0);
+    }
+    
+    public static void main(String[] args) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        EncodeOptions options = EncodeOptions.defaults().withExecutor(executor);
+        
+        { // Order test: the results come in the order of the messages, the long ones started first don't pass the others
+            int messages = 200;
+            EncodeProcessor processor = new EncodeProcessor(options, 4, 16, true);
+            List<EncodeResult> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(1);
+            processor.subscribe(new Flow.Subscriber<EncodeResult>() {
+                @Override public void onSubscribe(Flow.Subscription subscription) { subscription.request(Long.MAX_VALUE); }
+                @Override public void onNext(EncodeResult result) { results.add(result); }
+                @Override public void onError(Throwable error) { done.countDown(); }
+                @Override public void onComplete() { done.countDown(); }
+            });
+            try (SubmissionPublisher<String> publisher = new SubmissionPublisher<>(executor, 8)) {
+                publisher.subscribe(processor);
+                for (int i = 0; i < messages; i++) publisher.submit(i + " " + "ORDER ".repeat(i % 7 == 0 ? 200 : 1));
+            }
+            boolean ok = done.await(1, TimeUnit.MINUTES) && results.size() == messages;
+            for (int i = 0; ok && i < messages; i++) {
+                EncodeResult result = results.get(i);
+                ok = result.getIndex() == i && result.isSuccess() && result.getMessage().startsWith(i + " ");
+            }
+            System.out.printf("%s: %s%n", "Order test", ok ? "ok" : "failed");
+        }
+        
+        { // Backpressure test: the subscriber gets no more than it requested, the upstream is asked for maxInFlight more at most
+            int maxInFlight = 8;
+            AtomicLong requested = new AtomicLong();
+            AtomicLong sent = new AtomicLong();
+            EncodeProcessor processor = new EncodeProcessor(options, 2, maxInFlight, true);
+            processor.onSubscribe(new Flow.Subscription() {
+                @Override public void request(long n) {
+                    requested.addAndGet(n);
+                    for (long i = 0; i < n; i++) processor.onNext("BACKPRESSURE " + sent.getAndIncrement());
+                }
+                @Override public void cancel() {}
+            });
+            AtomicLong received = new AtomicLong();
+            AtomicLong demand = new AtomicLong();
+            AtomicBoolean overflow = new AtomicBoolean();
+            CountDownLatch firstRequest = new CountDownLatch(5);
+            CountDownLatch bothRequests = new CountDownLatch(25);
+            Flow.Subscription[] subscription = new Flow.Subscription[1];
+            processor.subscribe(new Flow.Subscriber<EncodeResult>() {
+                @Override public void onSubscribe(Flow.Subscription given) {
+                    subscription[0] = given;
+                    demand.addAndGet(5);
+                    given.request(5);
+                }
+                @Override public void onNext(EncodeResult result) {
+                    // a result over the demand is the failure, no waiting needed to see it
+                    if (received.incrementAndGet() > demand.get()) overflow.set(true);
+                    firstRequest.countDown();
+                    bothRequests.countDown();
+                }
+                @Override public void onError(Throwable error) {}
+                @Override public void onComplete() {}
+            });
+            boolean ok = firstRequest.await(1, TimeUnit.MINUTES) && requested.get() <= 5 + maxInFlight;
+            demand.addAndGet(20);
+            subscription[0].request(20);
+            ok = ok && bothRequests.await(1, TimeUnit.MINUTES);
+            subscription[0].cancel();
+            // the encodings still running end before the counts are checked
+            executor.shutdown();
+            ok = ok && executor.awaitTermination(1, TimeUnit.MINUTES);
+            ok = ok && !overflow.get() && received.get() == 25 && requested.get() <= 25 + maxInFlight;
+            System.out.printf("%s: %s%n", "Backpressure test", ok ? "ok" : "failed");
+        }
+    }
+}
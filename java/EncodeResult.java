@@ -0,0 +1,29 @@
+// Outcome of encoding one message of a batch: the code or the reason it was not made
+public final class EncodeResult {
+    
+    private final long index;
+    private final String message;
+    private final QRCode code;
+    private final Exception error;
+    
+    EncodeResult(long index, String message, QRCode code, Exception error) {
+        this.index = index;
+        this.message = message;
+        this.code = code;
+        this.error = error;
+    }
+    
+    // Position of the message in the batch or the stream
+    public long getIndex() { return index; }
+    public String getMessage() { return message; }
+    public boolean isSuccess() { return error == null; }
+    // null if the message was not encoded
+    public QRCode getCode() { return code; }
+    // null if the message was encoded
+    public Exception getError() { return error; }
+    
+    @Override
+    public String toString() {
+        return String.format("EncodeResult[%d: %s]", index, isSuccess() ? "ok" : error);
+    }
+}
@@ -1,207 +1,174 @@
-import java.util.regex.Pattern;
-import java.util.regex.Matcher;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Map;
-import java.util.HashMap;
-import java.util.function.BiFunction;
-
-import java.util.logging.Logger;
-import java.util.logging.LogRecord;
-import java.util.logging.Handler;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
-import java.util.logging.Formatter;
-import java.util.logging.SimpleFormatter;
-import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
 
 class Parser {
     
-    private static final Logger logger = Logger.getLogger("xyz.wrabzy.qrcode.Parser");
-    static {
-        logger.setUseParentHandlers(false);
-        Handler handler = new ConsoleHandler();
-        logger.addHandler(handler);
+    private static final Coder.SegmentCoder NCODER = Coder::encodeNumeric;
+    private static final Coder.SegmentCoder ACODER = Coder::encodeAlphanumeric;
+    private static final Coder.SegmentCoder BCODER = Coder::encodeBinary;
+    // ISO-8859-1 is the default charset of the byte mode, the text that fits it takes a byte per character
+    private static final Coder.SegmentCoder LATIN1_BCODER = 
+        (message, from, to, version, sink) -> Coder.encodeBinary(message, from, to, version, sink, StandardCharsets.ISO_8859_1);
     
-        logger.setLevel(java.util.logging.Level.FINEST);
-        handler.setLevel(java.util.logging.Level.FINEST);
+    // Versions sharing the same lengths of the number of characters fields
+    static final int[] VERSION_CLASS_FIRST = {1, 10, 27};
+    static final int[] VERSION_CLASS_LAST = {9, 26, 40};
     
-        handler.setFormatter(new SimpleFormatter() {
-            @Override
-            public String format(LogRecord record) {
-                StringBuilder formatted = new StringBuilder();
-                Calendar recordTime = Calendar.getInstance();
-                recordTime.setTimeInMillis(record.getMillis());
-                formatted.append(String.format("[%d.%02d.%02d %02d:%02d:%02d][%s][%s][%d]%n", 
-                    recordTime.get(Calendar.YEAR),
-                    recordTime.get(Calendar.MONTH),
-                    recordTime.get(Calendar.DAY_OF_MONTH),
-                    recordTime.get(Calendar.HOUR_OF_DAY),
-                    recordTime.get(Calendar.MINUTE),
-                    recordTime.get(Calendar.SECOND),
-                    record.getLoggerName(),
-                    record.getSourceMethodName(),
-                    record.getThreadID()));
-                if (record.getParameters() != null) {
-                    formatted.append("with parameters:\n");
-                    for (Object parameter: record.getParameters()) {
-                        formatted.append(parameter.toString());
-                        formatted.append("\n");
-                    }
-                }
-                formatted.append(String.format("{%n    %s%n}%n%n", record.getMessage()));
-                return formatted.toString();
-            }
-        });
+    static int versionClass(int version) {
+        if (version < 10) return 0;
+        else if (version < 27) return 1;
+        else return 2;
     }
-
-    private static final Pattern NUMERIC = Pattern.compile("\\d+");
-    private static final Pattern ALPHA = Pattern.compile("[-A-Z $%*+./:]+");
-    private static final Pattern ALPHANUMERIC = Pattern.compile("[-A-Z0-9 $%*+./:]+");
-    private static final Pattern BINARY = Pattern.compile("[^-A-Z0-9 $%*+./:]+");
-    private static final BiFunction<String, Integer, byte[]> NCODER = Coder::encodeNumeric;
-    private static final BiFunction<String, Integer, byte[]> ACODER = Coder::encodeAlphanumeric;
-    private static final BiFunction<String, Integer, byte[]> BCODER = Coder::encodeBinary;
-
-    private static Map<String, ArrayList<Segment[]>> definedSegments = new HashMap<>();
-
-    public static ArrayList<Segment[]> defineSegmentingVariants(String message) throws UnableToEncodeException {
-        QRCode.checkMessage(message);
-        
-        if (definedSegments.containsKey(message)) {
-            logger.fine("No segment definition is required because the message is already segmented.");
-            return definedSegments.get(message);
-        }
     
-        Matcher mNumeric = NUMERIC.matcher(message);
-        Matcher mAlpha = ALPHA.matcher(message);
-        Matcher mExclusiveBinary = BINARY.matcher(message);
+    private static final int NUMERIC = 0;
+    private static final int ALPHANUMERIC = 1;
+    private static final int BINARY = 2;
+    private static final int[][] MODE_BITS = {{4 + 10, 4 + 12, 4 + 14},  // numeric
+                                              {4 + 9,  4 + 11, 4 + 13},  // alphanumeric
+                                              {4 + 8,  4 + 16, 4 + 16}}; // binary
+    private static final String[] MODE_NAMES = {"numeric", "alphanumeric", "binary"};
+    private static final Coder.SegmentCoder[] MODE_CODERS = {NCODER, ACODER, BCODER};
+    private static final Coder.SegmentCoder[] LATIN1_MODE_CODERS = {NCODER, ACODER, LATIN1_BCODER};
     
-        int structBitFlags = 0b000;
+    private static final BoundedCache<String, List<List<Segment>>> definedSegments = 
+        new BoundedCache<>(Integer.getInteger("xyz.wrabzy.qrcode.segmentCacheSize", 1024));
     
-        if (mNumeric.find()) {
-            structBitFlags = structBitFlags | 0b100;
-        }
+    static void setCacheCapacity(int capacity) {
+        definedSegments.setCapacity(capacity);
+    }
     
-        if (mAlpha.find()) {
-            structBitFlags = structBitFlags | 0b010;
-        }
+    static int getCacheCapacity() {
+        return definedSegments.getCapacity();
+    }
     
-        if (mExclusiveBinary.find()) {
-            structBitFlags = structBitFlags | 0b001;
-        }
+    static CacheStats getCacheStats() {
+        return definedSegments.stats();
+    }
     
-        ArrayList<Segment[]> segmentingVariants = new ArrayList<>();
+    // Returns the segmentation with the fewest bits for each version class (see versionClass).
+    // The lists are unmodifiable and may be shared between threads.
+    public static List<List<Segment>> defineSegmentingVariants(String message) throws UnableToEncodeException {
+        QRCode.checkMessage(message);
+        
+        List<List<Segment>> segmentingVariants = definedSegments.get(message);
+        if (segmentingVariants != null) {
+            QRCode.trace("defineSegmentingVariants", () -> "No segment definition is required because the message is already segmented.");
+            return segmentingVariants;
+        }
+        
+        // The whole message in one charset: the readers take the bytes without ECI as ISO-8859-1 or guess UTF-8
+        boolean latin1 = isLatin1(message);
+        List<List<Segment>> variants = new ArrayList<>(VERSION_CLASS_FIRST.length);
+        int[] modes = new int[message.length()];
+        for (int versionClass = 0; versionClass < VERSION_CLASS_FIRST.length; versionClass++) {
+            chooseModes(message, versionClass, latin1, modes);
+            variants.add(Collections.unmodifiableList(Arrays.asList(toSegments(message, modes, latin1 ? LATIN1_MODE_CODERS : MODE_CODERS))));
+        }
+        segmentingVariants = Collections.unmodifiableList(variants);
+        
+        definedSegments.put(message, segmentingVariants);
+        
+        if (QRCode.tracing()) {
+            List<List<Segment>> identified = segmentingVariants;
+            QRCode.trace("defineSegmentingVariants", () -> "The following segmentation options have been identified: " + identified);
+        }
+        return segmentingVariants;
+    }
     
-        ArrayList<Segment> mixedSegments;
-        Segment[] segments;
-        switch(structBitFlags) {
-            case 0b001:
-                logger.fine("The message contains only characters that can only be encoded binary.");
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, BCODER, "binary")});
-                break;
-            case 0b010:
-                logger.fine("The message contains only characters other than digits that can be alphanumeric encoded.");
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, ACODER, "alphanumeric")});
-                break;
-            case 0b011:
-                logger.fine("The message contains characters other than digits that can be alphanumeric encoded and characters that can only be encoded binary.");
-                // There are two variants:
-                // first - mixed encoding (firstly - alphanumeric, then the rest of the characters - binary)
-                // second - all characters binary encoding
-                // variant with lowest version number wins
-                mixedSegments = new ArrayList<>();
-                do {
-                    mixedSegments.add(new Segment(mAlpha.group(), mAlpha.start(), ACODER, "alphanumeric"));
-                } while (mAlpha.find());
-                do {
-                    mixedSegments.add(new Segment(mExclusiveBinary.group(), mExclusiveBinary.start(), BCODER, "binary"));
-                } while (mExclusiveBinary.find());
-                segments = mixedSegments.toArray(new Segment[mixedSegments.size()]);
-                Arrays.sort(segments, (f, s) -> f.getStartIndex() - s.getStartIndex());
-                segmentingVariants.add(segments);
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, BCODER, "binary")});
-                break;
-            case 0b100:
-                logger.fine("The message contains only digits.");
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, NCODER, "numeric")});
-                break;
-            case 0b101:
-                logger.fine("The message contains digits and characters that can only be encoded binary.");
-                // There are two variants:
-                // first - mixed encoding (firstly - numeric, then the rest of the characters - binary)
-                // second - all characters binary encoding
-                // variant with lowest version number wins
-                mixedSegments = new ArrayList<>();
-                do {
-                    mixedSegments.add(new Segment(mNumeric.group(), mNumeric.start(), NCODER, "numeric"));
-                } while (mNumeric.find());
-                do {
-                    mixedSegments.add(new Segment(mExclusiveBinary.group(), mExclusiveBinary.start(), BCODER, "binary"));
-                } while (mExclusiveBinary.find());
-                segments = mixedSegments.toArray(new Segment[mixedSegments.size()]);
-                Arrays.sort(segments, (f, s) -> f.getStartIndex() - s.getStartIndex());
-                segmentingVariants.add(segments);
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, BCODER, "binary")});
-                break;
-            case 0b110:
-                logger.fine("The message contains digits and characters other than digits that can be alphanumeric encoded.");
-                // There are two variants:
-                // first - mixed encoding (firstly - numeric, then the rest of the characters - alphanumeric)
-                // second - all characters alphanumeric encoding
-                // variant with lowest version number wins
-                mixedSegments = new ArrayList<>();
-                do {
-                    mixedSegments.add(new Segment(mNumeric.group(), mNumeric.start(), NCODER, "numeric"));
-                } while (mNumeric.find());
-                do {
-                    mixedSegments.add(new Segment(mAlpha.group(), mAlpha.start(), ACODER, "alphanumeric"));
-                } while (mAlpha.find());
-                segments = mixedSegments.toArray(new Segment[mixedSegments.size()]);
-                Arrays.sort(segments, (f, s) -> f.getStartIndex() - s.getStartIndex());
-                segmentingVariants.add(segments);
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, ACODER, "alphanumeric")});
-                break;
-            case 0b111:
-                logger.fine("The message contains all kinds of characters.");
-                // There are three variants:
-                // first - mixed encoding (firstly - numeric, secondary - alphanumeric, then the rest of the characters - binary)
-                // second - mixed encoding (firstly alphanumeric, then the rest of the characters - binary)
-                // third - all characters binary encoding
-                // variant with lowest version number wins
-                mixedSegments = new ArrayList<>();
-                do {
-                    mixedSegments.add(new Segment(mNumeric.group(), mNumeric.start(), NCODER, "numeric"));
-                } while (mNumeric.find());
-                do {
-                    mixedSegments.add(new Segment(mAlpha.group(), mAlpha.start(), ACODER, "alphanumeric"));
-                } while (mAlpha.find());
-                do {
-                    mixedSegments.add(new Segment(mExclusiveBinary.group(), mExclusiveBinary.start(), BCODER, "binary"));
-                } while (mExclusiveBinary.find());
-                segments = mixedSegments.toArray(new Segment[mixedSegments.size()]);
-                Arrays.sort(segments, (f, s) -> f.getStartIndex() - s.getStartIndex());
-                segmentingVariants.add(segments);
-                
-                mixedSegments = new ArrayList<>();
-                mAlpha = ALPHANUMERIC.matcher(message);
-                mExclusiveBinary = mExclusiveBinary.reset();
-                while (mAlpha.find()) {
-                    mixedSegments.add(new Segment(mAlpha.group(), mAlpha.start(), ACODER, "alphanumeric"));
+    /*
+        Dynamic programming over the message: costs[m] is the smallest size of the already 
+        processed part ending with a segment of mode m. Sizes are counted in 1/6 of a bit, 
+        so that a digit costs 20 (10/3 bits) and an alphanumeric character costs 33 (11/2 bits). 
+        Switching to mode m closes the previous segment (rounded up to whole bits) and pays 
+        the header of m. A binary character costs a byte in ISO-8859-1 (latin1) or its UTF-8 bytes. 
+        Result: modes[i] is the mode of the i-th character.
+    */
+    private static void chooseModes(String message, int versionClass, boolean latin1, int[] modes) {
+        int length = message.length();
+        int[] headers = new int[3];
+        for (int m = 0; m < 3; m++) headers[m] = MODE_BITS[m][versionClass] * 6;
+        
+        byte[] previousModes = new byte[length * 3];
+        int[] costs = headers.clone();
+        int[] nextCosts = new int[3];
+        int[] charCosts = new int[3];
+        for (int i = 0; i < length; i++) {
+            int value = Coder.alphanumericValue(message.charAt(i));
+            charCosts[NUMERIC] = value >= 0 && value < 10 ? 20 : -1;
+            charCosts[ALPHANUMERIC] = value >= 0 ? 33 : -1;
+            charCosts[BINARY] = (latin1 ? 1 : utf8Length(message, i)) * 8 * 6;
+            
+            for (int to = 0; to < 3; to++) {
+                nextCosts[to] = Integer.MAX_VALUE;
+                if (charCosts[to] < 0) continue;
+                // continuing the segment of the previous character
+                if (costs[to] != Integer.MAX_VALUE) {
+                    nextCosts[to] = costs[to] + charCosts[to];
+                    previousModes[i * 3 + to] = (byte) to;
                 }
-                while (mExclusiveBinary.find()) {
-                    mixedSegments.add(new Segment(mExclusiveBinary.group(), mExclusiveBinary.start(), BCODER, "binary"));
+                // or starting a new segment with this character
+                if (i == 0) continue;
+                for (int from = 0; from < 3; from++) {
+                    if (from == to || costs[from] == Integer.MAX_VALUE) continue;
+                    int cost = (costs[from] + 5) / 6 * 6 + headers[to] + charCosts[to];
+                    if (cost < nextCosts[to]) {
+                        nextCosts[to] = cost;
+                        previousModes[i * 3 + to] = (byte) from;
+                    }
                 }
-                segments = mixedSegments.toArray(new Segment[mixedSegments.size()]);
-                Arrays.sort(segments, (f, s) -> f.getStartIndex() - s.getStartIndex());
-                segmentingVariants.add(segments);
-                
-                segmentingVariants.add(new Segment[]{new Segment(message, 0, BCODER, "binary")});
+            }
+            int[] swap = costs;
+            costs = nextCosts;
+            nextCosts = swap;
         }
-    
-        definedSegments.put(message, segmentingVariants);
         
-        logger.fine("The following segmentation options have been identified: " + segmentingVariants.toString());
-        return segmentingVariants;
+        int mode = BINARY;
+        for (int m = 0; m < 3; m++) {
+            if (costs[m] != Integer.MAX_VALUE && (costs[m] + 5) / 6 < (costs[mode] + 5) / 6) mode = m;
+        }
+        for (int i = length - 1; i >= 0; i--) {
+            modes[i] = mode;
+            mode = previousModes[i * 3 + mode];
+        }
+    }
+    
+    private static boolean isLatin1(String message) {
+        for (int i = 0; i < message.length(); i++) {
+            if (message.charAt(i) >= 0x100) return false;
+        }
+        return true;
+    }
+    
+    // Number of bytes the character adds to the UTF-8 form (the low half of a surrogate pair adds nothing)
+    private static int utf8Length(String message, int index) {
+        char c = message.charAt(index);
+        if (c < 0x80) return 1;
+        else if (c < 0x800) return 2;
+        else if (Character.isHighSurrogate(c)) {
+            return index + 1 < message.length() && Character.isLowSurrogate(message.charAt(index + 1)) ? 4 : 1;
+        } else if (Character.isLowSurrogate(c)) {
+            return index > 0 && Character.isHighSurrogate(message.charAt(index - 1)) ? 0 : 1;
+        }
+        else return 3;
+    }
+    
+    private static Segment[] toSegments(String message, int[] modes, Coder.SegmentCoder[] coders) {
+        int nOfSegments = 1;
+        for (int i = 1; i < modes.length; i++) {
+            if (modes[i] != modes[i - 1]) nOfSegments++;
+        }
+        Segment[] segments = new Segment[nOfSegments];
+        int segmentsPointer = 0;
+        int from = 0;
+        for (int i = 1; i <= modes.length; i++) {
+            if (i == modes.length || modes[i] != modes[from]) {
+                segments[segmentsPointer++] = new Segment(message, from, i, coders[modes[from]], MODE_NAMES[modes[from]]);
+                from = i;
+            }
+        }
+        return segments;
     }
-}
\ No newline at end of file
+}
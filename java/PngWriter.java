@@ -0,0 +1,167 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/*
+    Headless renderer of codes to 1-bit grayscale PNG, no AWT and no ImageIO.
+    Every row of modules becomes one scanline (dark modules - 0 bits, light - 1 bits) that is given
+    to the Deflater scale times, the compressed data goes out in IDAT chunks as it comes.
+    The Deflater and the buffers are reused from one picture to the next.
+    Not thread safe, a writer belongs to one thread. close() frees the Deflater.
+*/
+public final class PngWriter implements AutoCloseable {
+    
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'};
+    private static final byte[] IHDR = {'I', 'H', 'D', 'R'};
+    private static final byte[] IDAT = {'I', 'D', 'A', 'T'};
+    private static final byte[] IEND = {'I', 'E', 'N', 'D'};
+    private static final int IDAT_SIZE = 1 << 15;
+    
+    private final RenderOptions options;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private final byte[] header = new byte[13];
+    private final byte[] word = new byte[4];
+    private final byte[] compressed = new byte[IDAT_SIZE];
+    private int compressedLength;
+    // filter byte and the pixels of a row
+    private byte[] scanline = new byte[0];
+    private byte[] lightScanline = new byte[0];
+    
+    public PngWriter() {
+        this(RenderOptions.defaults(), Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    // compressionLevel - Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9) or Deflater.DEFAULT_COMPRESSION
+    public PngWriter(RenderOptions options, int compressionLevel) {
+        if ((compressionLevel < 0 || compressionLevel > 9) && compressionLevel != Deflater.DEFAULT_COMPRESSION)
+            throw new IllegalArgumentException("Compression level must be in range [0 - 9] or -1 for the default, but was " + compressionLevel + ".");
+        this.options = options;
+        deflater = new Deflater(compressionLevel);
+    }
+    
+    public RenderOptions getOptions() {
+        return options;
+    }
+    
+    public byte[] toBytes(BitMatrix code) {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        try {
+            write(code, png);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing into memory failed.", e);
+        }
+        return png.toByteArray();
+    }
+    
+    public void write(BitMatrix code, WritableByteChannel channel) throws IOException {
+        write(code, Channels.newOutputStream(channel));
+    }
+    
+    public void write(BitMatrix code, OutputStream out) throws IOException {
+        write(code, options, out);
+    }
+    
+    // With other options than the ones of the writer, the Deflater stays the same
+    void write(BitMatrix code, RenderOptions options, OutputStream out) throws IOException {
+        int size = code.getSize();
+        int scale = options.getScale();
+        int quietZone = options.getQuietZone();
+        int pixels = options.imageSize(code);
+        int lineLength = 1 + (pixels + 7) / 8;
+        if (scanline.length != lineLength) {
+            scanline = new byte[lineLength];
+            lightScanline = new byte[lineLength];
+            Arrays.fill(lightScanline, 1, lineLength, (byte) 0xFF);
+        }
+        
+        out.write(SIGNATURE);
+        putInt(header, 0, pixels);
+        putInt(header, 4, pixels);
+        header[8] = 1;  // bit depth
+        header[9] = 0;  // grayscale
+        header[10] = 0; // deflate
+        header[11] = 0; // adaptive filtering, all the scanlines use filter 0 (none)
+        header[12] = 0; // no interlace
+        writeChunk(out, IHDR, header, 13);
+        
+        deflater.reset();
+        compressedLength = 0;
+        for (int i = 0; i < quietZone * scale; i++) deflate(out, lightScanline);
+        for (int y = 0; y < size; y++) {
+            System.arraycopy(lightScanline, 0, scanline, 0, lineLength);
+            int x = code.nextDark(y, 0);
+            while (x < size) {
+                int end = code.nextLight(y, x);
+                clearPixels(scanline, (quietZone + x) * scale, (quietZone + end) * scale);
+                x = code.nextDark(y, end);
+            }
+            for (int i = 0; i < scale; i++) deflate(out, scanline);
+        }
+        for (int i = 0; i < quietZone * scale; i++) deflate(out, lightScanline);
+        deflater.finish();
+        while (!deflater.finished()) drain(out);
+        if (compressedLength > 0) writeChunk(out, IDAT, compressed, compressedLength);
+        
+        writeChunk(out, IEND, header, 0);
+        out.flush();
+    }
+    
+    // Makes the pixels [from, to) of the scanline dark
+    private static void clearPixels(byte[] scanline, int from, int to) {
+        int first = 1 + (from >>> 3);
+        int last = 1 + ((to - 1) >>> 3);
+        int headMask = 0xFF >>> (from & 7);
+        int tailMask = 0xFF << (7 - ((to - 1) & 7)) & 0xFF;
+        if (first == last) {
+            scanline[first] &= ~(headMask & tailMask);
+            return;
+        }
+        scanline[first] &= ~headMask;
+        Arrays.fill(scanline, first + 1, last, (byte) 0);
+        scanline[last] &= ~tailMask;
+    }
+    
+    private void deflate(OutputStream out, byte[] line) throws IOException {
+        deflater.setInput(line);
+        while (!deflater.needsInput()) drain(out);
+    }
+    
+    // Compresses into the IDAT buffer, a full buffer goes out
+    private void drain(OutputStream out) throws IOException {
+        compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+        if (compressedLength == compressed.length) {
+            writeChunk(out, IDAT, compressed, compressedLength);
+            compressedLength = 0;
+        }
+    }
+    
+    private void writeChunk(OutputStream out, byte[] type, byte[] data, int length) throws IOException {
+        putInt(word, 0, length);
+        out.write(word);
+        out.write(type);
+        out.write(data, 0, length);
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, length);
+        putInt(word, 0, (int) crc.getValue());
+        out.write(word);
+    }
+    
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+    
+    @Override
+    public void close() {
+        deflater.end();
+    }
+}
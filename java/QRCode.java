@@ -1,94 +1,55 @@
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Arrays;
-import java.util.function.BiPredicate;
+import java.util.Collections;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.TreeMap;
-
-import java.util.logging.Logger;
-import java.util.logging.LogRecord;
-import java.util.logging.Handler;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
-import java.util.logging.Formatter;
-import java.util.logging.SimpleFormatter;
-import java.util.Calendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 
 public class QRCode {
     
-    private static final Logger logger = Logger.getLogger("xyz.wrabzy.qrcode.QRCode");
-    static {
-        logger.setUseParentHandlers(false);
-        Handler handler = new ConsoleHandler();
-        logger.addHandler(handler);
-        
-        logger.setLevel(java.util.logging.Level.FINEST);
-        handler.setLevel(java.util.logging.Level.FINEST);
-        
-        handler.setFormatter(new SimpleFormatter() {
-            @Override
-            public String format(LogRecord record) {
-                StringBuilder formatted = new StringBuilder();
-                Calendar recordTime = Calendar.getInstance();
-                recordTime.setTimeInMillis(record.getMillis());
-                formatted.append(String.format("[%d.%02d.%02d %02d:%02d:%02d][%s][%s][%d]%n", 
-                    recordTime.get(Calendar.YEAR),
-                    recordTime.get(Calendar.MONTH),
-                    recordTime.get(Calendar.DAY_OF_MONTH),
-                    recordTime.get(Calendar.HOUR_OF_DAY),
-                    recordTime.get(Calendar.MINUTE),
-                    recordTime.get(Calendar.SECOND),
-                    record.getLoggerName(),
-                    record.getSourceMethodName(),
-                    record.getThreadID()));
-                if (record.getParameters() != null) {
-                    formatted.append("with parameters:\n");
-                    for (Object parameter: record.getParameters()) {
-                        formatted.append(parameter.toString());
-                        formatted.append("\n");
-                    }
-                }
-                formatted.append(String.format("{%n    %s%n}%n%n", record.getMessage()));
-                return formatted.toString();
-            }
-        });
-    }
+    // Diagnostics of the encoding, off while there is no listener
+    private static volatile EncodeListener listener;
     
     private final String MESSAGE;
     private final Level LEVEL;
-    private final byte[][] CODE;
+    private final BitMatrix CODE;
     private final int VERSION;
-
-    private QRCode (byte[][] code) {
-        CODE = code;
-        LEVEL = extractLevel(code);
-        VERSION = extractVersion(code);
-        message = decode();
-    }
     
-    private QRCode (String message, Level level, int possibleVersion) throws UnableToEncodeException {
+    private QRCode (String message, Level level, int version, BitBuffer encodedMessage, QREncoder encoder) {
         MESSAGE = message;
         LEVEL = level;
-        CODE = generateCode(possibleVersion);
-        VERSION = (CODE.length - 25) / 4;
+        VERSION = version;
+        CODE = generateCode(version, encodedMessage, encoder);
         
-        logger.fine(toString());
+        if (tracing()) trace("QRCode", this::toString);
     }
     
     public String getMessage() { return MESSAGE; }
     public Level getLevel() { return LEVEL; }
     public int getVersion() { return VERSION; }
-
+    public BitMatrix getCode() { return CODE; }
+    
     @Override
     public String toString() {
         StringBuilder code = new StringBuilder();
-        for (int i = 0; i < CODE.length; i++) {
-            for (int j = 0; j < CODE[i].length; j++) {
-                if (CODE[i][j] == 1) code.append("@");
-                else if (CODE[i][j] == 0) code.append(" ");
-                else code.append("?");
+        // with the quiet zone 4 modules wide
+        int size = CODE.getSize();
+        for (int i = -4; i < size + 4; i++) {
+            for (int j = -4; j < size + 4; j++) {
+                boolean dark = i >= 0 && i < size && j >= 0 && j < size && CODE.get(j, i);
+                code.append(dark ? "@" : " ");
             }
             code.append("\n");
         }
@@ -97,122 +58,215 @@ public class QRCode {
         return code.toString();
     }
     
+    // From the strongest correction level to the weakest
+    private static final Level[] LEVELS = {Level.H, Level.Q, Level.M, Level.L};
+    
     public static QRCode encode(String message) throws UnableToEncodeException {
+        return QREncoder.forCurrentThread().encode(message);
+    }
+    
+    public static QRCode encode(String message, Level level) throws UnableToEncodeException {
+        return QREncoder.forCurrentThread().encode(message, level);
+    }
+    
+    public static QRCode encode(String message, int version) throws UnableToEncodeException, TargetVersionException {
+        return QREncoder.forCurrentThread().encode(message, version);
+    }
+    
+    public static QRCode encode(String message, Level level, int version) throws UnableToEncodeException, TargetVersionException {
+        return QREncoder.forCurrentThread().encode(message, level, version);
+    }
+    
+    static QRCode encode(String message, QREncoder encoder) throws UnableToEncodeException {
         checkMessage(message);
-        logger.fine("Encoding the message without specifying the version and level.\n    Message: \"" + message + "\"");
-        QRCode qr;
-        try {
-            logger.fine("Trying to encode with H level");
-            qr = new QRCode(message, Level.H, 1);
-        } catch (UnableToEncodeException uteeh) {
-            try {
-                logger.fine("Attempt to encode with H level failed\n    Trying to encode with Q level");
-                qr = new QRCode(message, Level.Q, 1);
-            } catch (UnableToEncodeException uteeq) {
-                try {
-                    logger.fine("Attempt to encode with Q level failed\n    Trying to encode with M level");
-                    qr = new QRCode(message, Level.M, 1);
-                } catch (UnableToEncodeException uteem) { 
-                    try {
-                        logger.fine("Attempt to encode with M level failed\n    Trying to encode with L level");
-                        qr = new QRCode(message, Level.L, 1); 
-                    } catch (UnableToEncodeException uteel) { 
-                        logger.fine("Attempt to encode with L level failed\n    The message cannot be encoded.\n    Message: \"" + message + "\"");
-                        throw uteel;
-                    }
-                }
+        if (tracing()) trace("encode", () -> "Encoding the message without specifying the version and level.\n    Message: \"" + message + "\"");
+        EncodedVariants encoded = new EncodedVariants(message, encoder);
+        for (Level level: LEVELS) {
+            int version = encoded.fitVersion(level, 1, 40);
+            if (version > 0) {
+                if (tracing()) trace("encode", () -> "The message fits in " + version + " version with " + level + " level");
+                return new QRCode(message, level, version, encoded.get(version), encoder);
+            }
+            if (tracing()) trace("encode", () -> "The message doesn't fit with " + level + " level");
+        }
+        if (tracing()) trace("encode", () -> "The message cannot be encoded.\n    Message: \"" + message + "\"");
+        throw new UnableToEncodeException("Message \"" + message + "\" is too long to encode", true);
+    }
+    
+    static QRCode encode(String message, Level level, QREncoder encoder) throws UnableToEncodeException {
+        checkMessage(message);
+        if (level == null) return QRCode.encode(message, encoder);
+        if (tracing()) trace("encode", () -> "Encoding the message with " + level + " level without specifying the version\n    Message: \"" + message + "\"");
+        EncodedVariants encoded = new EncodedVariants(message, encoder);
+        int version = encoded.fitVersion(level, 1, 40);
+        if (version < 0) {
+            if (tracing()) trace("encode", () -> "The message cannot be encoded with " + level + " level.\n    Message: \"" + message + "\"");
+            throw new UnableToEncodeException("Message \"" + message + "\" is too long to encode with level " + level, true);
+        }
+        return new QRCode(message, level, version, encoded.get(version), encoder);
+    }
+    
+    static QRCode encode(String message, int version, QREncoder encoder) throws UnableToEncodeException, TargetVersionException {
+        checkMessage(message);
+        checkVersion(version);
+        if (tracing()) trace("encode", () -> "Encoding the message with " + version + " version without specifying the level\n    Message: \"" + message + "\"");
+        EncodedVariants encoded = new EncodedVariants(message, encoder);
+        for (Level level: LEVELS) {
+            if (encoded.fitVersion(level, version, version) > 0) {
+                if (tracing()) trace("encode", () -> "The message fits in " + version + " version with " + level + " level");
+                return new QRCode(message, level, version, encoded.get(version), encoder);
             }
+            if (tracing()) trace("encode", () -> "The message doesn't fit in " + version + " version with " + level + " level");
         }
-        return qr;
+        if (tracing()) trace("encode", () -> "The message cannot be encoded with version " + version + ".\n    Message: \"" + message + "\"");
+        throw new TargetVersionException("Message \"" + message +"\" is too long to encode with version " + version, true);
     }
     
-    public static QRCode encode(String message, Level level) throws UnableToEncodeException {
+    static QRCode encode(String message, Level level, int version, QREncoder encoder) throws UnableToEncodeException, TargetVersionException {
         checkMessage(message);
-        QRCode qr;
-        if (level != null) {
+        checkVersion(version);
+        if (level == null) return QRCode.encode(message, version, encoder);
+        if (tracing()) trace("encode", () -> "Encoding the message with " + level + " level and " + version + " version\n    Message: \"" + message + "\"");
+        EncodedVariants encoded = new EncodedVariants(message, encoder);
+        if (encoded.fitVersion(level, version, version) < 0)
+            throw new TargetVersionException("Message \"" + message +"\" is too long to encode with version " + version, true);
+        return new QRCode(message, level, version, encoded.get(version), encoder);
+    }
+    
+    public static QRCode encode(String message, EncodeOptions options) throws UnableToEncodeException, TargetVersionException {
+        return QREncoder.forCurrentThread().encode(message, options);
+    }
+    
+    /*
+        Encodes every message on the executor of the options, the results are in the order of the messages.
+        The longest messages are started first, so a few big versions don't end up at the tail of the batch.
+        A message that can't be encoded or is rejected by the executor gets a failed result and the rest of the batch goes on.
+        Coder scratch buffers are per thread, the segmentation cache and the version templates are shared.
+    */
+    public static List<EncodeResult> encodeAll(List<String> messages, EncodeOptions options) {
+        Executor executor = options.getExecutor() != null ? options.getExecutor() : ForkJoinPool.commonPool();
+        int n = messages.size();
+        
+        // (Integer.MAX_VALUE - length) in the high half and the index in the low one, so ascending order is the longest first
+        long[] order = new long[n];
+        for (int i = 0; i < n; i++) {
+            String message = messages.get(i);
+            int length = message == null ? 0 : message.length();
+            order[i] = ((long) (Integer.MAX_VALUE - length) << 32) | i;
+        }
+        Arrays.sort(order);
+        
+        EncodeResult[] results = new EncodeResult[n];
+        CompletableFuture<?>[] tasks = new CompletableFuture<?>[n];
+        for (int k = 0; k < n; k++) {
+            int index = (int) order[k];
+            String message = messages.get(index);
             try {
-                logger.fine("Encoding the message with " + level + " level without specifying the version\n    Message: \"" + message + "\"");
-                qr = new QRCode(message, level, 1);
-            } catch (UnableToEncodeException utee) {
-                logger.fine("The message cannot be encoded with " + level + " level.\n    Message: \"" + message + "\"");
-                throw utee;
+                tasks[k] = CompletableFuture.runAsync(() -> results[index] = encodeItem(index, message, options), executor);
+            } catch (RejectedExecutionException e) {
+                // the message fails, the ones already started go on
+                results[index] = new EncodeResult(index, message, null, e);
+                tasks[k] = CompletableFuture.completedFuture(null);
             }
-        } else {
-            qr = QRCode.encode(message);
         }
-        return qr;
+        CompletableFuture.allOf(tasks).join();
+        return Collections.unmodifiableList(Arrays.asList(results));
     }
     
-    public static QRCode encode(String message, int version) throws UnableToEncodeException, TargetVersionException {
-        checkMessage(message);
-        checkVersion(version);
-        logger.fine("Encoding the message with " + version + " version without specifying the level\n    Message: \"" + message + "\"");
-        QRCode qr;
-        Level level = Level.H;
+    public static List<EncodeResult> encodeAll(Iterable<String> messages, EncodeOptions options) {
+        List<String> batch = new ArrayList<>();
+        for (String message: messages) batch.add(message);
+        return encodeAll(batch, options);
+    }
+    
+    // Never throws for a message that can't be encoded, the result holds the reason
+    static EncodeResult encodeItem(long index, String message, EncodeOptions options) {
         try {
-            logger.fine("Trying to encode with " + version + " version and " + level + " level");
-            qr = new QRCode(message, level, version);
-            if (version != qr.getVersion()) throw new TargetVersionException();
-        } catch (UnableToEncodeException eh) {
-            logger.fine("Attempt to encode with " + version + " version and " + level + " level failed");
-            try {
-                level = Level.Q;
-                logger.fine("Trying to encode with " + version + " version and " + level + " level");
-                qr = new QRCode(message, level, version);
-                if (version != qr.getVersion()) throw new TargetVersionException();
-            } catch (UnableToEncodeException eq) {
-                logger.fine("Attempt to encode with " + version + " version and " + level + " level failed");
-                try {
-                    level = Level.M;
-                    logger.fine("Trying to encode with " + version + " version and " + level + " level");
-                    qr = new QRCode(message, level, version);
-                    if (version != qr.getVersion()) throw new TargetVersionException();
-                } catch (UnableToEncodeException em) {
-                    logger.fine("Attempt to encode with " + version + " version and " + level + " level failed");
-                    try {
-                        level = Level.L;
-                        logger.fine("Trying to encode with " + version + " version and " + level + " level");
-                        qr = new QRCode(message, level, version);
-                        if (version != qr.getVersion()) throw new TargetVersionException("Message \"" + message +"\" is too long to encode with version " + version);
-                    } catch (UnableToEncodeException el) {
-                        logger.fine("Attempt to encode with " + version + " version and " + level + " level failed\n    The message cannot be encoded with version " + version + ".\n    Message: \"" + message + "\"");
-                        throw el;
-                    }
+            return new EncodeResult(index, message, QRCode.encode(message, options), null);
+        } catch (UnableToEncodeException | RuntimeException e) {
+            return new EncodeResult(index, message, null, e);
+        }
+    }
+    
+    /*
+        The message encoded with the best segmentation of each version class. 
+        The length of the encoded message depends only on the version class, so it is 
+        enough to encode the message at most three times (lazily) to find the 
+        level and version without generating the code itself.
+    */
+    private static final class EncodedVariants {
+        private final List<List<Segment>> variants;
+        // encoded[versionClass] is used only when isEncoded[versionClass]
+        private final BitBuffer[] encoded;
+        private final boolean[] isEncoded;
+        
+        EncodedVariants(String message, QREncoder encoder) throws UnableToEncodeException {
+            variants = Parser.defineSegmentingVariants(message);
+            encoded = encoder.variants;
+            isEncoded = new boolean[variants.size()];
+        }
+        
+        BitBuffer get(int version) {
+            int versionClass = Parser.versionClass(version);
+            if (!isEncoded[versionClass]) {
+                List<Segment> variant = variants.get(versionClass);
+                if (tracing()) trace("EncodedVariants.get", () -> "Encoding segments: " + variant);
+                BitBuffer bits = encoded[versionClass];
+                bits.clear();
+                bits.ensureCapacity(Level.L.getSize(Parser.VERSION_CLASS_LAST[versionClass]));
+                for (Segment segment: variant) {
+                    segment.encode(version, bits);
+                }
+                if (tracing()) trace("EncodedVariants.get", () -> "Message encoded for versions " + Parser.VERSION_CLASS_FIRST[versionClass] + 
+                                                         " - " + Parser.VERSION_CLASS_LAST[versionClass] + ": " + bits);
+                isEncoded[versionClass] = true;
+            }
+            return encoded[versionClass];
+        }
+        
+        // The lowest version in range [minVersion - maxVersion] the message fits in with the level, -1 if none
+        int fitVersion(Level level, int minVersion, int maxVersion) {
+            for (int versionClass = Parser.versionClass(minVersion); versionClass <= Parser.versionClass(maxVersion); versionClass++) {
+                int from = Math.max(minVersion, Parser.VERSION_CLASS_FIRST[versionClass]);
+                int to = Math.min(maxVersion, Parser.VERSION_CLASS_LAST[versionClass]);
+                int size = get(from).size();
+                if (size <= level.getSize(to)) {
+                    return Math.max(from, level.getVersion(size));
                 }
             }
+            return -1;
         }
-        return qr;
     }
     
-    public static QRCode encode(String message, Level level, int version) throws UnableToEncodeException, TargetVersionException {
-        checkMessage(message);
-        checkVersion(version);
-        QRCode qr;
-        if (level != null) {
-            logger.fine("Encoding the message with " + level + " level and " + version + " version\n    Message: \"" + message + "\"");
-            qr = new QRCode(message, level, version);
-            if (version != qr.getVersion()) throw new TargetVersionException("Message \"" + message +"\" is too long to encode with version " + version);
-        } else {
-            qr = QRCode.encode(message, version);
-        }
-        return qr;
+    // Segmentation cache shared by all encodings, capacity 0 turns it off
+    public static void setSegmentationCacheCapacity(int capacity) {
+        Parser.setCacheCapacity(capacity);
     }
-
-    public static QRCode decode(byte[][] code) {
-        return new QRCode(code);
+    
+    public static CacheStats getSegmentationCacheStats() {
+        return Parser.getCacheStats();
     }
     
-    private Level extractLevel(byte[][] code) {
-        
+    // null turns the diagnostics off
+    public static void setEncodeListener(EncodeListener encodeListener) {
+        listener = encodeListener;
     }
     
-    private int extractVersion(byte[][] code) {
-        
+    public static EncodeListener getEncodeListener() {
+        return listener;
     }
-
-    private static String decode() {
-        return "";
+    
+    // package access
+    // Messages with details are built behind it, so nothing is allocated while the diagnostics are off
+    static boolean tracing() {
+        return listener != null;
+    }
+    
+    static void trace(String stage, Supplier<String> message) {
+        EncodeListener current = listener;
+        if (current != null) current.trace(stage, message);
     }
+    
     // package access
     static void checkMessage(String message) throws UnableToEncodeException {
         if (message == null || message.length() == 0) throw new UnableToEncodeException("Unable to encode empty message");
@@ -224,171 +278,74 @@ public class QRCode {
                                              "Version number must be in range [1 - 40].");
     }
     
-    private byte[][] generateCode(int targetVersion) throws UnableToEncodeException {
-        logger.fine("The code will be generated in 6 steps.");
+    // All the intermediate steps work in the buffers of the encoder, only the matrix of the code is new
+    private BitMatrix generateCode(int version, BitBuffer encodedMessage, QREncoder encoder) {
+        long time = QRCodeMetrics.stage(QRCodeMetrics.ENCODE, encoder.started);
+        trace("generateCode", () -> "The code will be generated in 5 steps.");
+        encoder.prepare(version);
         
-        logger.fine("Step 1. Encoding the message");
-        Map.Entry<Integer, byte[]> versionAndEncodedMessage = encodeMessage(targetVersion);
-        int version = versionAndEncodedMessage.getKey();
-        byte[] encodedMessage = versionAndEncodedMessage.getValue();
+        trace("generateCode", () -> "Step 1. Filling in the code");
+        BitBuffer filled = fill(encodedMessage, version);
+        time = QRCodeMetrics.stage(QRCodeMetrics.FILL, time);
         
-        logger.fine("Step 2. Filling in the code");
-        byte[] filled = fill(encodedMessage, version);
+        trace("generateCode", () -> "Step 2. Splitting the code into blocks");
+        int dataLength = LEVEL.getSize(version) / 8;
+        filled.getCodewords(0, encoder.data, 0, dataLength);
+        time = QRCodeMetrics.stage(QRCodeMetrics.SPLIT, time);
         
-        logger.fine("Step 3. Splitting the code into blocks");
-        byte[][] blocks = splitIntoBlocks(filled, version);
-       
-        logger.fine("Step 4. Generating correction blocks");
-        byte[][] correctionBlocks = Corrector.makeCorrectionBlocks(blocks, LEVEL, version);
+        trace("generateCode", () -> "Step 3. Generating correction blocks");
+        Corrector.makeCorrectionBlocks(encoder.data, LEVEL, version, encoder.correction);
+        time = QRCodeMetrics.stage(QRCodeMetrics.CORRECTION, time);
         
-        logger.fine("Step 5. Combining data blocks and corrections");
-        ArrayList<Byte> qred = combine(blocks, correctionBlocks);
+        trace("generateCode", () -> "Step 4. Combining data blocks and corrections");
+        int correctionLength = LEVEL.howManyBlocks(version) * LEVEL.getCorrectionBytesPerBlock(version);
+        BitBuffer qred = combine(encoder.data, dataLength, encoder.correction, correctionLength, encoder.combined);
+        time = QRCodeMetrics.stage(QRCodeMetrics.COMBINE, time);
         
-        logger.fine("Step 6. Code markup");
-        byte[][] code = markup(qred, version);
+        trace("generateCode", () -> "Step 5. Code markup");
+        BitMatrix code = markup(qred, LEVEL, version, encoder);
+        QRCodeMetrics.stage(QRCodeMetrics.MARKUP, time);
         
-        logger.fine("End of QRCode generation");
+        trace("generateCode", () -> "End of QRCode generation");
         
         return code;
     }    
     
-    private Map.Entry<Integer, byte[]> encodeMessage(int targetVersion) throws UnableToEncodeException {
-        ArrayList<Segment[]> variants = Parser.defineSegmentingVariants(MESSAGE);
-        TreeMap<Integer, byte[]> encodedVariants = new TreeMap<>();
-        for (Segment[] variant: variants) {
-            logger.fine("Encoding segments: " + Arrays.toString(variant));
-            try {
-                int possibleVersion = -1;
-                int factVersion = targetVersion;
-                byte[] encoded = null;
-                for (int i = 0; i < 3 && possibleVersion != factVersion; i++) {
-                    possibleVersion = factVersion;
-                    byte[][] encodedSegments = new byte[variant.length][];
-                    for (int j = 0; j < variant.length; j++) {
-                        encodedSegments[j] = variant[j].getCoder().apply(variant[j].getContent(), possibleVersion);
-                    }
-                    logger.fine("Encoded segments: " + Arrays.deepToString(encodedSegments));
-                    encoded = Coder.concat(encodedSegments);
-                    factVersion = LEVEL.getVersion(encoded.length);
-                }
-                logger.fine("Message encoded with " + factVersion + " version: " + Arrays.toString(encoded) + "\n    Target version was " + targetVersion);
-                if (factVersion < targetVersion) {
-                    factVersion = targetVersion;
-                    logger.fine("Since the actual version is smaller than the target version, the actual version is promoted to the target version");
-                }
-                encodedVariants.put(factVersion, encoded);
-            } catch (IllegalArgumentException iae) {
-                logger.fine("An exception was thrown while decoding a message: " + iae.getMessage());
-            }
-        }
-        if (encodedVariants.size() > 0) {
-            return encodedVariants.firstEntry();
-        } else {
-            throw new UnableToEncodeException("Impossible to encode message \"" + MESSAGE + " with level " + LEVEL);
-        }
-    }
-    
-    private byte[] fill(byte[] codeToBeFilled, int version) {
+    // Pads the code in place up to the capacity of the version
+    private BitBuffer fill(BitBuffer codeToBeFilled, int version) {
         int targetLength = LEVEL.getSize(version);
-        int existingLength = codeToBeFilled.length;
+        int existingLength = codeToBeFilled.size();
         if (existingLength < targetLength) {
-            byte[] filledCode = new byte[targetLength];
-            int index = 0;
-            while (index < existingLength) {
-                filledCode[index] = codeToBeFilled[index++];
-            }
+            codeToBeFilled.ensureCapacity(targetLength);
             // padding
-            int i = 0;
-            while (existingLength < targetLength && i < 4) {
-                filledCode[index++] = 0;
-                existingLength += 1;
-                i += 1;
-            }
-            while (existingLength % 8 != 0) {
-                filledCode[index++] = 0;
-                existingLength++;
+            int terminator = Math.min(4, targetLength - existingLength);
+            codeToBeFilled.appendBits(0, terminator);
+            existingLength += terminator;
+            if (existingLength % 8 != 0) {
+                codeToBeFilled.appendBits(0, 8 - existingLength % 8);
+                existingLength += 8 - existingLength % 8;
             }
             boolean oddStep = true;
             while (existingLength < targetLength) {
-                if (oddStep) {
-                    filledCode[index++] = 1;
-                    filledCode[index++] = 1;
-                    filledCode[index++] = 1;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 1;
-                    filledCode[index++] = 1;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 0;
-                } else {
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 1;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 0;
-                    filledCode[index++] = 1;
-                }
+                codeToBeFilled.appendBits(oddStep ? 0b11101100 : 0b00010001, 8);
                 existingLength += 8;
                 oddStep = !oddStep;
             }
-            return filledCode;
-        } else {
-            return codeToBeFilled;
-        }
-    }
-    
-    private byte[][] splitIntoBlocks(byte[] data, int version) {
-        int nOfBlocks = LEVEL.howManyBlocks(version);
-        byte[][] blocks = new byte[nOfBlocks][];
-        if (nOfBlocks > 1) {
-            int bytes = LEVEL.getSize(version) / 8;
-            int bytesInBlock = bytes / nOfBlocks;
-            int augmentedBlocks = bytes % nOfBlocks;
-            int dataPointer = 0;
-            for(int i = 0; i < blocks.length; i++) {
-                int thisBlockLength = (bytesInBlock + (i >= nOfBlocks - augmentedBlocks ? 1 : 0)) * 8;
-                blocks[i] = new byte[thisBlockLength];
-                for(int j = 0; j < thisBlockLength; j++) {
-                    blocks[i][j] = data[dataPointer++];
-                }
-            }
-        } else {
-            blocks[0] = data;
         }
-        return blocks;
+        return codeToBeFilled;
     }
     
-    private ArrayList<Byte> combine(byte[][] dataBlocks, byte[][] correctionBlocks) {
-        ArrayList<Byte> combined = new ArrayList<>();
+    // Data blocks followed by correction blocks, both are block after block
+    private BitBuffer combine(byte[] data, int dataLength, byte[] correction, int correctionLength, BitBuffer combined) {
+        combined.clear();
+        combined.ensureCapacity((dataLength + correctionLength) * 8);
         
-        /*for (int bytePointer = 0; bytePointer < dataBlocks[dataBlocks.length - 1].length; bytePointer += 8) {
-            for (int blocksPointer = 0; blocksPointer < dataBlocks.length; blocksPointer++) {
-                if (bytePointer < dataBlocks[blocksPointer].length) {
-                    int bitsPointer = bytePointer;
-                    do {
-                        combined.add(dataBlocks[blocksPointer][bitsPointer++]);
-                    } while (bitsPointer % 8 != 0);
-                }
-            }
+        // the codewords are not interleaved yet
+        for (int i = 0; i < dataLength; i++) {
+            combined.appendBits(data[i], 8);
         }
-        for (int bytePointer = 0; bytePointer < correctionBlocks[correctionBlocks.length - 1].length; bytePointer += 8) {
-            for (int blocksPointer = 0; blocksPointer < correctionBlocks.length; blocksPointer++) {
-                int bitsPointer = bytePointer;
-                do {
-                    combined.add(correctionBlocks[blocksPointer][bitsPointer]);
-                } while (++bitsPointer % 8 != 0);
-            }
-        }*/
-        for (int i = 0; i < dataBlocks.length; i++) {
-            for (int j = 0; j < dataBlocks[i].length; j++) {
-                combined.add(dataBlocks[i][j]);
-            }
-        }
-        for (int i = 0; i < correctionBlocks.length; i++) {
-            for (int j = 0; j < correctionBlocks[i].length; j++) {
-                combined.add(correctionBlocks[i][j]);
-            }
+        for (int i = 0; i < correctionLength; i++) {
+            combined.appendBits(correction[i], 8);
         }
         return combined;
     }
@@ -416,446 +373,488 @@ public class QRCode {
                         {{0,1,0,0,0,0},{1,1,1,0,1,0},{0,1,0,1,0,1}}, {{1,1,0,1,1,0},{1,1,1,1,1,0},{1,0,1,0,0,1}}, {{1,1,0,1,0,0},{1,0,0,0,0,0},{0,0,1,1,1,1}},
                         {{0,1,0,0,1,0},{1,0,0,1,0,0},{1,1,0,0,1,1}}, {{0,0,1,1,0,0},{0,0,0,0,1,0},{1,1,0,1,1,1}}, {{1,0,1,0,1,0},{0,0,0,1,1,0},{0,0,1,0,1,1}},
                         {{1,1,1,0,0,1},{0,0,0,1,0,0},{0,1,0,1,0,1}}};  
-                        
-    private byte[][] markup(ArrayList<Byte> qred, int version) {
-        int size = 2 * 4;
-        if (version == 1) size += 21;
-        else size = size + alignmentPatterns[version - 1][alignmentPatterns[version - 1].length - 1] + 7;
-        byte[][] qrcode = new byte[size][size];
-        for (int i = 0; i < size; i++) {
-            for (int j = 0; j < size; j++) {
-                qrcode[i][j] = -1;
-            }
-        }
-        // making border 4x4
-        for (int i = 0; i < size; i++) {
-            if (i < 4 || i > size - 5) {
+    
+    /*
+        Function patterns of a version: finder, alignment and timing patterns, version codes and the dark module,
+        packed as a BitMatrix. Cells are bit positions y * stride + x, stride = 64 * wordsPerRow,
+        so the cell is the bit (cell % 64) of the word (cell / 64).
+        formatSlots are the cells of the two copies of the level and mask code, the k-th bit goes to
+        formatSlots[k] and formatSlots[15 + k]. Built once for every version and only read after that,
+        every code starts with a copy of the modules.
+    */
+    static final class Template {
+        private final int size;
+        private final int stride;
+        private final long[] modules;
+        private final int[] formatSlots = new int[30];
+        // data cells (row * size + column) in the order of filling
+        private final int[] placement;
+        // maskPlanes[m] has the k-th bit (as in BitBuffer) set when the mask m inverts the cell placement[k]
+        private final long[][] maskPlanes = new long[NUMBER_OF_MASKS][];
+        
+        private Template(int version) {
+            int size = 2 * 4;
+            if (version == 1) size += 21;
+            else size = size + alignmentPatterns[version - 1][alignmentPatterns[version - 1].length - 1] + 7;
+            byte[][] qrcode = new byte[size][size];
+            for (int i = 0; i < size; i++) {
                 for (int j = 0; j < size; j++) {
-                    qrcode[i][j] = 0;
+                    qrcode[i][j] = -1;
                 }
-            } else {
-                for (int j = 0; j < 4; j++) {
-                    qrcode[i][j] = 0;
+            }
+            // making border 4x4
+            for (int i = 0; i < size; i++) {
+                if (i < 4 || i > size - 5) {
+                    for (int j = 0; j < size; j++) {
+                        qrcode[i][j] = 0;
+                    }
+                } else {
+                    for (int j = 0; j < 4; j++) {
+                        qrcode[i][j] = 0;
+                    }
+                    for (int j = size - 1; j > size - 5; j--) {
+                        qrcode[i][j] = 0;
+                    }
                 }
-                for (int j = size - 1; j > size - 5; j--) {
-                    qrcode[i][j] = 0;
+            }
+            // searching patterns
+            for (int i = 4; i < 12; i++) {
+                // top left
+                for (int j = 4; j < 12; j++) {
+                    if (i == 11 || j == 11) qrcode[i][j] = 0;
+                    else if ((i == 4 || i == 10) && j < 11) qrcode[i][j] = 1;
+                    else if (i > 4 && i < 10 && (j == 4 || j == 10)) qrcode[i][j] = 1;
+                    else if ((i == 5 || i == 9) && j < 10) qrcode[i][j] = 0;
+                    else if (i > 5 && i < 9 && (j == 5 || j == 9)) qrcode[i][j] = 0;
+                    else qrcode[i][j] = 1;
+                }
+                // top right
+                for (int j = size - 5; j > size - 13; j--) {
+                    if (i == 11 || j == size - 12) qrcode[i][j] = 0;
+                    else if ((i == 4 || i == 10) && j > size - 12) qrcode[i][j] = 1;
+                    else if (i > 4 && i < 10 && (j == size - 5 || j == size - 11)) qrcode[i][j] = 1;
+                    else if ((i == 5 || i == 9) && j > size - 11) qrcode[i][j] = 0;
+                    else if (i > 5 && i < 9 && (j == size - 6 || j == size - 10)) qrcode[i][j] = 0;
+                    else qrcode[i][j] = 1;
                 }
             }
-        }
-        // searching patterns
-        for (int i = 4; i < 12; i++) {
-            // top left
-            for (int j = 4; j < 12; j++) {
-                if (i == 11 || j == 11) qrcode[i][j] = 0;
-                else if ((i == 4 || i == 10) && j < 11) qrcode[i][j] = 1;
-                else if (i > 4 && i < 10 && (j == 4 || j == 10)) qrcode[i][j] = 1;
-                else if ((i == 5 || i == 9) && j < 10) qrcode[i][j] = 0;
-                else if (i > 5 && i < 9 && (j == 5 || j == 9)) qrcode[i][j] = 0;
-                else qrcode[i][j] = 1;
-            }
-            // top right
-            for (int j = size - 5; j > size - 13; j--) {
-                if (i == 11 || j == size - 12) qrcode[i][j] = 0;
-                else if ((i == 4 || i == 10) && j > size - 12) qrcode[i][j] = 1;
-                else if (i > 4 && i < 10 && (j == size - 5 || j == size - 11)) qrcode[i][j] = 1;
-                else if ((i == 5 || i == 9) && j > size - 11) qrcode[i][j] = 0;
-                else if (i > 5 && i < 9 && (j == size - 6 || j == size - 10)) qrcode[i][j] = 0;
-                else qrcode[i][j] = 1;
-            }
-        }
-        // bot left
-        for (int i = size - 5; i > size - 13; i--) {
-            for (int j = 4; j < 12; j++) {
-                if (i == size - 12 || j == 11) qrcode[i][j] = 0;
-                else if ((i == size - 5 || i == size - 11) && j < 11) qrcode[i][j] = 1;
-                else if (i < size - 5 && i > size - 11 && (j == 4 || j == 10)) qrcode[i][j] = 1;
-                else if ((i == size - 6 || i == size - 10) && j < 10) qrcode[i][j] = 0;
-                else if (i < size - 6 && i > size - 10 && (j == 5 || j == 9)) qrcode[i][j] = 0;
-                else qrcode[i][j] = 1;
+            // bot left
+            for (int i = size - 5; i > size - 13; i--) {
+                for (int j = 4; j < 12; j++) {
+                    if (i == size - 12 || j == 11) qrcode[i][j] = 0;
+                    else if ((i == size - 5 || i == size - 11) && j < 11) qrcode[i][j] = 1;
+                    else if (i < size - 5 && i > size - 11 && (j == 4 || j == 10)) qrcode[i][j] = 1;
+                    else if ((i == size - 6 || i == size - 10) && j < 10) qrcode[i][j] = 0;
+                    else if (i < size - 6 && i > size - 10 && (j == 5 || j == 9)) qrcode[i][j] = 0;
+                    else qrcode[i][j] = 1;
+                }
             }
-        }
-        
-        // alignment patterns
-        if (version > 1) {
-            for (int i = 0; i < alignmentPatterns[version - 1].length; i++) {
-                for (int j = 0; j < alignmentPatterns[version - 1].length; j++) {
-                    int centerX = alignmentPatterns[version - 1][i] + 4;
-                    int centerY = alignmentPatterns[version - 1][j] + 4;
-                    boolean canFit = true;
-                    for (int m = centerX - 2; m < centerX + 3; m++) {
-                        for (int n = centerY - 2; n < centerY + 3; n++) {
-                            canFit = canFit && (qrcode[m][n] == -1);
-                        }
-                    }
-                    if (canFit) {
+            
+            // alignment patterns
+            if (version > 1) {
+                for (int i = 0; i < alignmentPatterns[version - 1].length; i++) {
+                    for (int j = 0; j < alignmentPatterns[version - 1].length; j++) {
+                        int centerX = alignmentPatterns[version - 1][i] + 4;
+                        int centerY = alignmentPatterns[version - 1][j] + 4;
+                        boolean canFit = true;
                         for (int m = centerX - 2; m < centerX + 3; m++) {
                             for (int n = centerY - 2; n < centerY + 3; n++) {
-                                if (m == centerX - 2 || m == centerX + 2) qrcode[m][n] = 1;
-                                else if ((m > centerX - 2 || m < centerX + 2) && (n == centerY - 2 || n == centerY + 2)) qrcode[m][n] = 1;
-                                else if (m == centerX && n == centerY) qrcode[m][n] = 1;
-                                else qrcode[m][n] = 0;
+                                canFit = canFit && (qrcode[m][n] == -1);
+                            }
+                        }
+                        if (canFit) {
+                            for (int m = centerX - 2; m < centerX + 3; m++) {
+                                for (int n = centerY - 2; n < centerY + 3; n++) {
+                                    if (m == centerX - 2 || m == centerX + 2) qrcode[m][n] = 1;
+                                    else if ((m > centerX - 2 || m < centerX + 2) && (n == centerY - 2 || n == centerY + 2)) qrcode[m][n] = 1;
+                                    else if (m == centerX && n == centerY) qrcode[m][n] = 1;
+                                    else qrcode[m][n] = 0;
+                                }
                             }
                         }
                     }
                 }
             }
-        }
-        
-        // sync lines
-        // horizontal 
-        {   
-            boolean black = true;
-            int i = 10;
-            for (int j = 12; j < size - 12; j++) {
-                if (qrcode[i][j] == -1) {
-                    qrcode[i][j] = (byte) (black ? 1 : 0);
+            
+            // sync lines
+            // horizontal 
+            {   
+                boolean black = true;
+                int i = 10;
+                for (int j = 12; j < size - 12; j++) {
+                    if (qrcode[i][j] == -1) {
+                        qrcode[i][j] = (byte) (black ? 1 : 0);
+                    }
+                    black = !black;
                 }
-                black = !black;
             }
-        }
-        // vertical 
-        {   
-            boolean black = true;
-            int j = 10;
-            for (int i = 12; i < size - 12; i++) {
-                if (qrcode[i][j] == -1) {
-                    qrcode[i][j] = (byte) (black ? 1 : 0);
+            // vertical 
+            {   
+                boolean black = true;
+                int j = 10;
+                for (int i = 12; i < size - 12; i++) {
+                    if (qrcode[i][j] == -1) {
+                        qrcode[i][j] = (byte) (black ? 1 : 0);
+                    }
+                    black = !black;
                 }
-                black = !black;
             }
-        }
-        
-        // version code
-        if (version > 6) {
-            for (int i = size - 15, n = 0; i < size - 12; i++, n++) {
-                for (int j = 4; j < 10; j++) {
-                    qrcode[i][j] = versionCodes[version - 7][n][j - 4];
-                    qrcode[j][i] = versionCodes[version - 7][n][j - 4];
+            
+            // version code
+            if (version > 6) {
+                for (int i = size - 15, n = 0; i < size - 12; i++, n++) {
+                    for (int j = 4; j < 10; j++) {
+                        qrcode[i][j] = versionCodes[version - 7][n][j - 4];
+                        qrcode[j][i] = versionCodes[version - 7][n][j - 4];
+                    }
                 }
             }
-        }
-        
-        // trying on masks
-        TreeMap<Integer, byte[][]> qrcodes = new TreeMap<>();
-        tryOnMask(qred, 0, qrcodes, qrcode, (i, j) -> (i + j) % 2 == 0);
-        tryOnMask(qred, 1, qrcodes, qrcode, (i, j) -> i % 2 == 0);
-        tryOnMask(qred, 2, qrcodes, qrcode, (i, j) -> j % 3 == 0);
-        tryOnMask(qred, 3, qrcodes, qrcode, (i, j) -> (i + j) % 3 == 0);
-        tryOnMask(qred, 4, qrcodes, qrcode, (i, j) -> (j / 3 + i / 2) % 2 == 0);
-        tryOnMask(qred, 5, qrcodes, qrcode, (i, j) -> (i * j) % 2 + (i * j) % 3 == 0);
-        tryOnMask(qred, 6, qrcodes, qrcode, (i, j) -> ((i * j) % 2 + (i * j) % 3) % 2 == 0);
-        tryOnMask(qred, 7, qrcodes, qrcode, (i, j) -> ((i * j) % 3 + (i + j) % 2) % 2 == 0);
-        
-        logger.fine("Chosen mask with penalty: " + qrcodes.firstEntry().getKey());
-        return qrcodes.firstEntry().getValue();
-    }
-    
-    private void tryOnMask(ArrayList<Byte> qred, int nOfMask, TreeMap<Integer, byte[][]> qrcodes, byte[][] qrBase, BiPredicate<Integer, Integer> condition) {
-        byte[][] qrcode = new byte[qrBase.length][];
-        int qrcodePointer = 0;
-        for (byte[] qrline: qrBase) {
-            qrcode[qrcodePointer++] = Arrays.copyOf(qrline, qrline.length);
-        }
-        
-        // top left mask code
-        {
-            int i = 4;
-            int maskCodePointer = 0;
-            while (i < 10) {
-                qrcode[12][i++] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
-            }
-            qrcode[12][++i] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
-            i++;
-            qrcode[i--][12] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
-            qrcode[i--][12] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
-            i--;
-            while (i > 3) {
-                qrcode[i--][12] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
-            }
-        }
-        
-        // bot left and top right mask codes
-        {
-            int i = qrcode.length - 5;
-            int maskCodePointer = 0;
-            while (i > qrcode.length - 12) {
-                qrcode[i--][12] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
+            
+            // top left level and mask code
+            int slot = 0;
+            {
+                int i = 4;
+                while (i < 10) {
+                    formatSlots[slot++] = 12 * size + i++;
+                }
+                formatSlots[slot++] = 12 * size + ++i;
+                i++;
+                formatSlots[slot++] = i-- * size + 12;
+                formatSlots[slot++] = i-- * size + 12;
+                i--;
+                while (i > 3) {
+                    formatSlots[slot++] = i-- * size + 12;
+                }
             }
-            qrcode[i][12] = 1;
-            i = qrcode.length - 12;
-            while (i < qrcode.length - 4) {
-                qrcode[12][i++] = LEVEL.getMaskCode(nOfMask)[maskCodePointer++];
+            
+            // bot left and top right level and mask codes
+            {
+                int i = size - 5;
+                while (i > size - 12) {
+                    formatSlots[slot++] = i-- * size + 12;
+                }
+                qrcode[i][12] = 1;
+                i = size - 12;
+                while (i < size - 4) {
+                    formatSlots[slot++] = 12 * size + i++;
+                }
             }
-        }
-        
-        // data filling
-        int rightCol = qrcode.length - 5;
-        int leftCol;
-        int row;
-        int qredPointer = 0;
-        boolean toTop = true;
-        while (rightCol > 3) {
-            leftCol = rightCol - 1;
-            if (toTop) {
-                row = qrcode.length - 5;
-                while (row > 3) {
-                    if (qrcode[row][rightCol] == -1) {
-                        if (qredPointer < qred.size()) {
-                            qrcode[row][rightCol] = condition.test(row - 4, rightCol - 4) ? invert(qred.get(qredPointer++)) : qred.get(qredPointer++);
-                        } else qrcode[row][rightCol] = 0;
+            
+            // two columns zigzag from the bottom right corner skipping the vertical sync line
+            boolean[] taken = new boolean[size * size];
+            for (int formatSlot: formatSlots) taken[formatSlot] = true;
+            int[] cells = new int[size * size];
+            int nOfCells = 0;
+            boolean toTop = true;
+            for (int rightCol = size - 5; rightCol > 3; rightCol -= 2) {
+                if (rightCol == 10) rightCol--;
+                for (int k = 0; k < size - 8; k++) {
+                    int row = toTop ? size - 5 - k : 4 + k;
+                    for (int col = rightCol; col > rightCol - 2; col--) {
+                        if (qrcode[row][col] == -1 && !taken[row * size + col]) cells[nOfCells++] = row * size + col;
                     }
-                    if (qrcode[row][leftCol] == -1) {
-                        if (qredPointer < qred.size()) {
-                            qrcode[row][leftCol] = condition.test(row - 4, leftCol - 4) ? invert(qred.get(qredPointer++)) : qred.get(qredPointer++);
-                        } else qrcode[row][leftCol] = 0;
-                    }  
-                    row--;
                 }
-            } else {
-                row = 4;
-                while (row < qrcode.length - 4) {
-                    if (qrcode[row][rightCol] == -1) {
-                        if (qredPointer < qred.size()) {
-                            qrcode[row][rightCol] = condition.test(row - 4, rightCol - 4) ? invert(qred.get(qredPointer++)) : qred.get(qredPointer++);
-                        } else qrcode[row][rightCol] = 0;
+                toTop = !toTop;
+            }
+            placement = Arrays.copyOf(cells, nOfCells);
+            
+            // without the quiet zone
+            this.size = size - 8;
+            stride = BitMatrix.wordsPerRow(this.size) << 6;
+            modules = new long[this.size * BitMatrix.wordsPerRow(this.size)];
+            for (int i = 4; i < size - 4; i++) {
+                for (int j = 4; j < size - 4; j++) {
+                    if (qrcode[i][j] == 1) modules[cell(i, j) >>> 6] |= 1L << cell(i, j);
+                }
+            }
+            for (int k = 0; k < formatSlots.length; k++) {
+                formatSlots[k] = cell(formatSlots[k] / size, formatSlots[k] % size);
+            }
+            for (int k = 0; k < placement.length; k++) {
+                placement[k] = cell(placement[k] / size, placement[k] % size);
+            }
+            
+            for (int nOfMask = 0; nOfMask < NUMBER_OF_MASKS; nOfMask++) {
+                maskPlanes[nOfMask] = new long[(nOfCells + 63) >>> 6];
+                for (int k = 0; k < nOfCells; k++) {
+                    if (isMasked(nOfMask, placement[k] / stride, placement[k] % stride)) {
+                        maskPlanes[nOfMask][k >>> 6] |= 1L << (63 - (k & 63));
                     }
-                    if (qrcode[row][leftCol] == -1) {
-                        if (qredPointer < qred.size()) {
-                            qrcode[row][leftCol] = condition.test(row - 4, leftCol - 4) ? invert(qred.get(qredPointer++)) : qred.get(qredPointer++);
-                        } else qrcode[row][leftCol] = 0;
-                    }  
-                    row++;
                 }
             }
-            toTop = !toTop;
-            rightCol -= 2;
-            if (rightCol == 10) rightCol -= 1;
         }
         
-        int penalty = rateTheMask(qrcode);
-        
-        logger.fine("Mask " + nOfMask + " with penalty: " + penalty);
-        qrcodes.put(penalty, qrcode);
+        // Cell of the module in the row i and the column j of the code with the quiet zone
+        private int cell(int i, int j) {
+            return (i - 4) * stride + j - 4;
+        }
     }
     
-    private byte invert(byte b) {
-        if (b == 1) return 0;
-        else if (b == 0) return 1;
-        else throw new IllegalArgumentException();
+    // null - the template of the version is not built yet
+    private static final AtomicReferenceArray<Template> TEMPLATES = new AtomicReferenceArray<>(41);
+    
+    static Template template(int version) {
+        Template template = TEMPLATES.get(version);
+        if (template == null) {
+            template = new Template(version);
+            if (!TEMPLATES.compareAndSet(version, null, template)) template = TEMPLATES.get(version);
+        }
+        return template;
     }
     
-    private static int rateTheMask(byte[][] qrcode) {
-        int rule1 = 0;
-        int rule2 = 0;
-        int rule3 = 0;
-        int rule4 = 0;
+    static BitMatrix markup(BitBuffer qred, Level level, int version, QREncoder encoder) {
+        Template template = template(version);
         
-        // rule1
-        // horizontal
-        for (int i = 4; i < qrcode.length - 4; i++) {
-            for (int j = 4; j < qrcode.length - 8;) {
-                int penalty = 0;
-                int c = j;
-                byte value = qrcode[i][c];
-                do {
-                    penalty++;
-                    c++;
-                } while (c < qrcode.length - 4 && value == qrcode[i][c]);
-                if (penalty > 4) {
-                    rule1 = rule1 + (penalty - 2);
-                    j = c;
-                } else {
-                    j++;
-                }
+        // trying on masks
+        QREncoder.Trial[] qrcodes = encoder.trials;
+        int[] penalties = encoder.penalties;
+        Executor executor = encoder.maskExecutor;
+        // rating of a mask stops once it is worse than the best one rated, so such penalties are partial
+        if (executor == null) {
+            int best = Integer.MAX_VALUE;
+            for (int nOfMask = 0; nOfMask < NUMBER_OF_MASKS; nOfMask++) {
+                tryOnMask(qred, level, nOfMask, template, qrcodes[nOfMask].modules);
+                penalties[nOfMask] = rateTheMask(qrcodes[nOfMask], template.size, best);
+                best = Math.min(best, penalties[nOfMask]);
             }
-        }
-        // vertical
-        for (int j = 4; j < qrcode.length - 4; j++) {
-            for (int i = 4; i < qrcode.length - 8;) {
-                int penalty = 0;
-                int c = i;
-                byte value = qrcode[c][j];
-                do {
-                    penalty++;
-                    c++;
-                } while (c < qrcode.length - 4 && value == qrcode[c][j]);
-                if (penalty > 4) {
-                    rule1 = rule1 + (penalty - 2);
-                    i = c;
-                } else {
-                    i++;
+        } else {
+            /*
+                The masks are taken one by one by the tasks on the executor and by the encoding thread itself.
+                The encoding thread waits only for the masks taken by the tasks that run, so a busy, full or
+                rejecting executor (the one the encoding runs on included) makes it try more masks itself
+                instead of a deadlock. The tasks that start after all the masks are taken do nothing.
+            */
+            AtomicInteger nextMask = new AtomicInteger();
+            AtomicInteger best = new AtomicInteger(Integer.MAX_VALUE);
+            CountDownLatch tried = new CountDownLatch(NUMBER_OF_MASKS);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Runnable trials = () -> {
+                for (int nOfMask = nextMask.getAndIncrement(); nOfMask < NUMBER_OF_MASKS; nOfMask = nextMask.getAndIncrement()) {
+                    try {
+                        tryOnMask(qred, level, nOfMask, template, qrcodes[nOfMask].modules);
+                        penalties[nOfMask] = rateTheMask(qrcodes[nOfMask], template.size, best.get());
+                        best.accumulateAndGet(penalties[nOfMask], Math::min);
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        tried.countDown();
+                    }
                 }
+            };
+            // one task less than the masks, the encoding thread is the last one
+            try {
+                for (int n = 1; n < NUMBER_OF_MASKS; n++) executor.execute(trials);
+            } catch (RejectedExecutionException e) {
+                // the masks are left to the tasks already given and to this thread
             }
+            trials.run();
+            awaitUninterruptibly(tried);
+            Throwable e = failure.get();
+            if (e instanceof RuntimeException) throw (RuntimeException) e;
+            if (e instanceof Error) throw (Error) e;
         }
         
-        // rule2
-        for (int i = 4; i < qrcode.length - 5; i++) {
-            for (int j = 4; j < qrcode.length - 5; j++) {
-                byte value = qrcode[i][j];
-                if (value == qrcode[i + 1][j] && 
-                    value == qrcode[i][j + 1] && 
-                    value == qrcode[i + 1][j + 1]) rule2 += 3;
+        // the lowest mask number wins among equal penalties
+        int chosenMask = 0;
+        for (int nOfMask = 0; nOfMask < NUMBER_OF_MASKS; nOfMask++) {
+            if (penalties[nOfMask] < penalties[chosenMask]) chosenMask = nOfMask;
+        }
+        QRCodeMetrics.maskChosen(chosenMask);
+        if (tracing()) {
+            for (int nOfMask = 0; nOfMask < NUMBER_OF_MASKS; nOfMask++) {
+                int mask = nOfMask;
+                trace("markup", () -> "Mask " + mask + " with penalty: " + penalties[mask]);
             }
+            int chosen = chosenMask;
+            trace("markup", () -> "Chosen mask " + chosen + " with penalty: " + penalties[chosen]);
         }
-        
-        // rule3
-        /*
-        // horizontal
-        for (int i = 4; i < qrcode.length - 4; i++) {
-            for (int j = 4; j < qrcode.length - 14;) {
-                if (qrcode[i][j] == 1) {
-                    if (qrcode[i][j + 1] == 0 &&
-                        qrcode[i][j + 2] == 1 &&
-                        qrcode[i][j + 3] == 1 &&
-                        qrcode[i][j + 4] == 1 &&
-                        qrcode[i][j + 5] == 0 &&
-                        qrcode[i][j + 6] == 1 &&
-                        qrcode[i][j + 7] == 0 &&
-                        qrcode[i][j + 8] == 0 &&
-                        qrcode[i][j + 9] == 0 &&
-                        qrcode[i][j + 10] == 0) {
-                            rule3 += 40;
-                            j += 7;
-                    } else {
-                        j++;
-                    }
-                } else {
-                    if (qrcode[i][j + 1] == 0 &&
-                        qrcode[i][j + 2] == 0 &&
-                        qrcode[i][j + 3] == 0 &&
-                        qrcode[i][j + 4] == 1 &&
-                        qrcode[i][j + 5] == 0 &&
-                        qrcode[i][j + 6] == 1 &&
-                        qrcode[i][j + 7] == 1 &&
-                        qrcode[i][j + 8] == 1 &&
-                        qrcode[i][j + 9] == 0 &&
-                        qrcode[i][j + 10] == 1) {
-                            rule3 += 40;
-                            if (j + 14 < qrcode.length - 4 &&
-                                qrcode[i][j + 11] == 0 &&
-                                qrcode[i][j + 12] == 0 &&
-                                qrcode[i][j + 13] == 0 &&
-                                qrcode[i][j + 14] == 0) {
-                                    j += 15;
-                            } else {
-                                j += 8;
-                            }
-                    } else {
-                        j++;
-                    }
-                }
+        return new BitMatrix(template.size, Arrays.copyOf(qrcodes[chosenMask].modules, template.modules.length));
+    }
+    
+    static final int NUMBER_OF_MASKS = 8;
+    
+    // Whether the mask inverts the module in the row i and the column j
+    private static boolean isMasked(int nOfMask, int i, int j) {
+        switch (nOfMask) {
+            case 0: return (i + j) % 2 == 0;
+            case 1: return i % 2 == 0;
+            case 2: return j % 3 == 0;
+            case 3: return (i + j) % 3 == 0;
+            case 4: return (j / 3 + i / 2) % 2 == 0;
+            case 5: return (i * j) % 2 + (i * j) % 3 == 0;
+            case 6: return ((i * j) % 2 + (i * j) % 3) % 2 == 0;
+            case 7: return ((i * j) % 3 + (i + j) % 2) % 2 == 0;
+            default: throw new IllegalArgumentException("There is no mask " + nOfMask + ".");
+        }
+    }
+    
+    // The masks being tried in the other threads, an interrupt is kept for the caller
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
             }
         }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+    
+    // Writes the masked code to the beginning of qrcode
+    static void tryOnMask(BitBuffer qred, Level level, int nOfMask, Template template, long[] qrcode) {
+        System.arraycopy(template.modules, 0, qrcode, 0, template.modules.length);
         
-        // vertical
-        for (int j = 4; j < qrcode.length - 4; j++) {
-            for (int i = 4; i < qrcode.length - 14;) {
-                if (qrcode[i][j] == 1) {
-                    if (qrcode[i + 1][j] == 0 &&
-                        qrcode[i + 2][j] == 1 &&
-                        qrcode[i + 3][j] == 1 &&
-                        qrcode[i + 4][j] == 1 &&
-                        qrcode[i + 5][j] == 0 &&
-                        qrcode[i + 6][j] == 1 &&
-                        qrcode[i + 7][j] == 0 &&
-                        qrcode[i + 8][j] == 0 &&
-                        qrcode[i + 9][j] == 0 &&
-                        qrcode[i + 10][j] == 0) {
-                            rule3 += 40;
-                            i += 7;
-                    } else {
-                        i++;
-                    }
-                } else {
-                    if (qrcode[i + 1][j] == 0 &&
-                        qrcode[i + 2][j] == 0 &&
-                        qrcode[i + 3][j] == 0 &&
-                        qrcode[i + 4][j] == 1 &&
-                        qrcode[i + 5][j] == 0 &&
-                        qrcode[i + 6][j] == 1 &&
-                        qrcode[i + 7][j] == 1 &&
-                        qrcode[i + 8][j] == 1 &&
-                        qrcode[i + 9][j] == 0 &&
-                        qrcode[i + 10][j] == 1) {
-                            rule3 += 40;
-                            if (i + 14 < qrcode.length - 4 &&
-                                qrcode[i + 11][j] == 0 &&
-                                qrcode[i + 12][j] == 0 &&
-                                qrcode[i + 13][j] == 0 &&
-                                qrcode[i + 14][j] == 0) {
-                                    i += 15;
-                            } else {
-                                i += 8;
-                            }
-                    } else {
-                        i++;
-                    }
-                }
-            }
-        }*/
-        // horizontal
-        for (int i = 4; i < qrcode.length - 4; i++) {
-            for (int j = 4; j < qrcode.length - 10;) {
-                if (qrcode[i][j] == 1 &&
-                    qrcode[i][j + 1] == 0 &&
-                    qrcode[i][j + 2] == 1 &&
-                    qrcode[i][j + 3] == 1 &&
-                    qrcode[i][j + 4] == 1 &&
-                    qrcode[i][j + 5] == 0 &&
-                    qrcode[i][j + 6] == 1) {
-                    rule3 += 40;
-                    j += 4;
-                } else {
-                    j++;
-                }
+        // level and mask codes
+        byte[] maskCode = level.getMaskCode(nOfMask);
+        for (int k = 0; k < 15; k++) {
+            if (maskCode[k] == 1) {
+                qrcode[template.formatSlots[k] >>> 6] |= 1L << template.formatSlots[k];
+                qrcode[template.formatSlots[15 + k] >>> 6] |= 1L << template.formatSlots[15 + k];
             }
         }
         
-        // vertical
-        for (int j = 4; j < qrcode.length - 4; j++) {
-            for (int i = 4; i < qrcode.length - 10;) {
-                if (qrcode[i][j] == 1 &&
-                    qrcode[i + 1][j] == 0 &&
-                    qrcode[i + 2][j] == 1 &&
-                    qrcode[i + 3][j] == 1 &&
-                    qrcode[i + 4][j] == 1 &&
-                    qrcode[i + 5][j] == 0 &&
-                    qrcode[i + 6][j] == 1) {
-                    rule3 += 40;
-                    i += 4;
-                } else {
-                    i++;
+        // data filling, the cells beyond the message stay 0 without the mask
+        int[] placement = template.placement;
+        long[] maskPlane = template.maskPlanes[nOfMask];
+        int filled = Math.min(qred.size(), placement.length);
+        for (int w = 0; w < maskPlane.length; w++) {
+            int rest = filled - (w << 6);
+            long word = rest > 0 ? qred.getWord(w) ^ maskPlane[w] : 0L;
+            if (rest > 0 && rest < 64) word &= ~(-1L >>> rest);
+            while (word != 0L) {
+                int cell = placement[(w << 6) + Long.numberOfLeadingZeros(word)];
+                qrcode[cell >>> 6] |= 1L << cell;
+                word ^= Long.highestOneBit(word);
+            }
+        }
+    }
+    
+    /*
+        Penalty of the masked code.
+        Rows and columns are packed into longs as in BitMatrix (words per line, bit x % 64 of the word x / 64
+        is module x of the line), so every rule works on 64 modules at once.
+        As soon as the penalty exceeds bound the rating stops and the partial penalty is returned,
+        such a mask can not be chosen anyway.
+    */
+    static int rateTheMask(QREncoder.Trial qrcode, int size, int bound) {
+        int words = BitMatrix.wordsPerRow(size);
+        long[] rows = qrcode.modules;
+        long[] columns = qrcode.columns;
+        Arrays.fill(columns, 0, size * words, 0L);
+        for (int y = 0; y < size; y++) {
+            for (int w = 0; w < words; w++) {
+                long word = rows[y * words + w];
+                while (word != 0L) {
+                    int x = (w << 6) + Long.numberOfTrailingZeros(word);
+                    columns[x * words + (y >>> 6)] |= 1L << y;
+                    word &= word - 1;
                 }
             }
         }
         
         // rule4
-        /*
+        int rule4 = 0;
         int blacks = 0;
-        int total = 0;
-        for (int i = 4; i < qrcode.length - 4; i++) {
-            for (int j = 4; j < qrcode.length - 4; j++) {
-                if (qrcode[i][j] == 1) blacks++;
-                total++;
-            }
-        }
-        double blacksToTotal = ((double) blacks) / total;
-        blacksToTotal *= 100;
-        blacksToTotal -= 50;
-        rule4 = ((int) Math.abs(blacksToTotal)) * 2;*/
-        double blacks = 0.0;
-        double total = 0.0;
-        for (int i = 4; i < qrcode.length - 4; i++) {
-            for (int j = 4; j < qrcode.length - 4; j++) {
-                if (qrcode[i][j] == 1) blacks++;
-                total++;
-            }
-        }
-        int blackPerc = (int) Math.round(blacks / total * 100);
+        for (int w = 0; w < size * words; w++) blacks += Long.bitCount(rows[w]);
+        // the percentage rounded half up as Math.round does, 200 * 177 * 177 fits an int
+        int modules = size * size;
+        int blackPerc = (200 * blacks + modules) / (2 * modules);
         int whitePerc = 100 - blackPerc;
         if (blackPerc > 55) rule4 = rule4 + (blackPerc - 55) * 10;
         if (whitePerc > 55) rule4 = rule4 + (whitePerc - 55) * 10;
-        return rule1 + rule2 + rule3 + rule4;
+        int penalty = rule4;
+        if (penalty > bound) return penalty;
+        
+        long[] shifted = qrcode.shifted;
+        long[] result = qrcode.result;
+        long[] temp = qrcode.temp;
+        
+        // rule2: v[x] - the modules (x, y) and (x, y + 1) are the same, h[x] - (x, y) and (x + 1, y) are the same
+        for (int y = 0; y < size - 1; y++) {
+            for (int w = 0; w < words; w++) {
+                result[w] = ~(rows[y * words + w] ^ rows[(y + 1) * words + w]);
+            }
+            shiftRight(result, 0, words, 1, shifted);
+            for (int w = 0; w < words; w++) result[w] &= shifted[w];
+            shiftRight(rows, y * words, words, 1, shifted);
+            for (int w = 0; w < words; w++) {
+                result[w] &= ~(rows[y * words + w] ^ shifted[w]) & below(size - 1, w);
+                penalty += 3 * Long.bitCount(result[w]);
+            }
+        }
+        if (penalty > bound) return penalty;
+        
+        // rule3
+        for (int line = 0; line < size; line++) {
+            penalty += 40 * finderLikePatterns(rows, line * words, words, size, shifted, result);
+            penalty += 40 * finderLikePatterns(columns, line * words, words, size, shifted, result);
+            if (penalty > bound) return penalty;
+        }
+        
+        // rule1
+        for (int line = 0; line < size; line++) {
+            penalty += longRuns(rows, line * words, words, size, shifted, result, temp);
+            penalty += longRuns(columns, line * words, words, size, shifted, result, temp);
+            if (penalty > bound) return penalty;
+        }
+        return penalty;
+    }
+    
+    // Number of the 1011101 patterns in the line
+    private static int finderLikePatterns(long[] lines, int from, int words, int size, long[] shifted, long[] result) {
+        for (int w = 0; w < words; w++) result[w] = lines[from + w] & below(size - 6, w);
+        for (int k = 1; k < 7; k++) {
+            shiftRight(lines, from, words, k, shifted);
+            boolean dark = k != 1 && k != 5;
+            for (int w = 0; w < words; w++) result[w] &= dark ? shifted[w] : ~shifted[w];
+        }
+        int count = 0;
+        for (int w = 0; w < words; w++) count += Long.bitCount(result[w]);
+        return count;
+    }
+    
+    /*
+        Sum of (length - 2) over the runs of 5 and more modules of the same color in the line.
+        same[x] - the modules x and x + 1 are the same, a run of length l gives l - 1 set bits in a row,
+        four[x] = same[x] & same[x + 1] & same[x + 2] & same[x + 3] keeps l - 4 of them,
+        so the run costs bitCount(four) plus 2 for its first bit in four.
+    */
+    private static int longRuns(long[] lines, int from, int words, int size, long[] shifted, long[] same, long[] four) {
+        shiftRight(lines, from, words, 1, shifted);
+        for (int w = 0; w < words; w++) {
+            same[w] = ~(lines[from + w] ^ shifted[w]) & below(size - 1, w);
+            four[w] = same[w];
+        }
+        for (int k = 1; k < 4; k++) {
+            shiftRight(same, 0, words, k, shifted);
+            for (int w = 0; w < words; w++) four[w] &= shifted[w];
+        }
+        int penalty = 0;
+        long carry = 0L;
+        for (int w = 0; w < words; w++) {
+            long starts = four[w] & ~((four[w] << 1) | carry);
+            carry = four[w] >>> 63;
+            penalty += Long.bitCount(four[w]) + 2 * Long.bitCount(starts);
+        }
+        return penalty;
+    }
+    
+    // dst[x] = line[x + k] for 0 < k < 64, bits beyond the line are 0
+    private static void shiftRight(long[] lines, int from, int words, int k, long[] dst) {
+        for (int w = 0; w < words; w++) {
+            long next = w + 1 < words ? lines[from + w + 1] << (64 - k) : 0L;
+            dst[w] = (lines[from + w] >>> k) | next;
+        }
+    }
+    
+    // w-th word of the mask of the bits below limit
+    private static long below(int limit, int w) {
+        int bits = limit - (w << 6);
+        if (bits >= 64) return -1L;
+        if (bits <= 0) return 0L;
+        return (1L << bits) - 1;
     }
     
     public static void main(String[] args) throws UnableToEncodeException, TargetVersionException {
@@ -863,8 +862,8 @@ public class QRCode {
         QRPic pic = new QRPic(12, first.CODE);
         pic.show();
     }
-    
-    
+
+
 }
 
 
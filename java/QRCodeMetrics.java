@@ -0,0 +1,278 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+    Counters of all the encodings of the process: latencies of the steps, codes by version, level and mask,
+    failures and the segmentation cache. Every counter and every bucket of the histograms is a LongAdder,
+    which is striped across the recording threads: recording costs a few nanoseconds, doesn't lock
+    and the encoding threads don't write to the same cache lines. Collecting is on by default.
+    Nothing is registered by itself, register() makes the metrics visible over JMX.
+*/
+public final class QRCodeMetrics implements QRCodeMetricsMXBean {
+    
+    public static final String OBJECT_NAME = "xyz.wrabzy.qrcode:type=QRCodeMetrics";
+    
+    // Steps of the encoding, see QRCode.generateCode
+    static final int ENCODE = 0;
+    static final int FILL = 1;
+    static final int SPLIT = 2;
+    static final int CORRECTION = 3;
+    static final int COMBINE = 4;
+    static final int MARKUP = 5;
+    static final int TOTAL = 6;
+    private static final String[] STAGES = {"encode", "fill", "split", "correction", "combine", "markup", "total"};
+    
+    private static final QRCodeMetrics METRICS = new QRCodeMetrics();
+    
+    private volatile boolean enabled = true;
+    private final Histogram[] stages = new Histogram[STAGES.length];
+    private final LongAdder[] byVersion = adders(41);
+    private final LongAdder[] byLevel = adders(Level.values().length);
+    private final LongAdder[] byMask = adders(QRCode.NUMBER_OF_MASKS);
+    private final LongAdder tooLong = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    
+    private QRCodeMetrics() {
+        for (int i = 0; i < stages.length; i++) stages[i] = new Histogram();
+    }
+    
+    public static QRCodeMetrics get() {
+        return METRICS;
+    }
+    
+    // Registers the metrics in the platform MBean server under OBJECT_NAME, if they are not there yet
+    public static ObjectName register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        if (!server.isRegistered(name)) server.registerMBean(METRICS, name);
+        return name;
+    }
+    
+    private static LongAdder[] adders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+        for (int i = 0; i < n; i++) adders[i] = new LongAdder();
+        return adders;
+    }
+    
+    // package access
+    // Start of a timed step, 0 while the metrics are off
+    static long start() {
+        return METRICS.enabled ? System.nanoTime() : 0;
+    }
+    
+    // Ends the step started at start, returns the start of the next step
+    static long stage(int stage, long start) {
+        if (start == 0) return 0;
+        long now = System.nanoTime();
+        METRICS.stages[stage].record(now - start);
+        return now;
+    }
+    
+    static void encoded(Level level, int version) {
+        if (!METRICS.enabled) return;
+        METRICS.byLevel[level.ordinal()].increment();
+        METRICS.byVersion[version].increment();
+    }
+    
+    static void maskChosen(int nOfMask) {
+        if (METRICS.enabled) METRICS.byMask[nOfMask].increment();
+    }
+    
+    // Only the messages that don't fit are too long, an empty message or a wrong version is an error
+    static void failed(Exception e) {
+        if (!METRICS.enabled) return;
+        if (e instanceof UnableToEncodeException && ((UnableToEncodeException) e).isTooLong()) METRICS.tooLong.increment();
+        else METRICS.errors.increment();
+    }
+    
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    @Override
+    public List<StageLatency> getStageLatencies() {
+        List<StageLatency> latencies = new ArrayList<>(STAGES.length);
+        for (int i = 0; i < STAGES.length; i++) latencies.add(stages[i].snapshot(STAGES[i]));
+        return Collections.unmodifiableList(latencies);
+    }
+    
+    @Override
+    public long getEncoded() {
+        return stages[TOTAL].count.sum();
+    }
+    
+    @Override
+    public Map<Integer, Long> getEncodedByVersion() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (int version = 1; version <= 40; version++) {
+            long count = byVersion[version].sum();
+            if (count > 0) counts.put(version, count);
+        }
+        return counts;
+    }
+    
+    @Override
+    public Map<String, Long> getEncodedByLevel() {
+        Map<String, Long> counts = new TreeMap<>();
+        for (Level level: Level.values()) counts.put(level.name(), byLevel[level.ordinal()].sum());
+        return counts;
+    }
+    
+    @Override
+    public Map<Integer, Long> getEncodedByMask() {
+        Map<Integer, Long> counts = new TreeMap<>();
+        for (int nOfMask = 0; nOfMask < QRCode.NUMBER_OF_MASKS; nOfMask++) counts.put(nOfMask, byMask[nOfMask].sum());
+        return counts;
+    }
+    
+    @Override
+    public long getTooLongFailures() {
+        return tooLong.sum();
+    }
+    
+    @Override
+    public long getErrorFailures() {
+        return errors.sum();
+    }
+    
+    @Override
+    public long getSegmentationCacheHits() {
+        return Parser.getCacheStats().getHits();
+    }
+    
+    @Override
+    public long getSegmentationCacheMisses() {
+        return Parser.getCacheStats().getMisses();
+    }
+    
+    @Override
+    public double getSegmentationCacheHitRate() {
+        return Parser.getCacheStats().getHitRate();
+    }
+    
+    @Override
+    public void reset() {
+        for (Histogram stage: stages) stage.reset();
+        for (LongAdder count: byVersion) count.reset();
+        for (LongAdder count: byLevel) count.reset();
+        for (LongAdder count: byMask) count.reset();
+        tooLong.reset();
+        errors.reset();
+    }
+    
+    public static void main(String[] args) throws Exception {
+        { // MXBean proxy test: the stage latencies come back through the open types as they were
+            ObjectName name = register();
+            QRCode.encode("HELLO WORLD 0123456789", Level.M);
+            QRCodeMetricsMXBean proxy = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(), name, QRCodeMetricsMXBean.class);
+            List<StageLatency> local = METRICS.getStageLatencies();
+            List<StageLatency> remote = proxy.getStageLatencies();
+            boolean same = remote.size() == local.size() && proxy.getEncoded() == METRICS.getEncoded();
+            for (int i = 0; same && i < local.size(); i++) {
+                same = local.get(i).toString().equals(remote.get(i).toString());
+            }
+            System.out.printf("%s: %s%n", "MXBean proxy test", same ? "ok" : "failed");
+        }
+        
+        { // Failures test: only a message that doesn't fit is too long
+            long tooLong = METRICS.getTooLongFailures();
+            long errors = METRICS.getErrorFailures();
+            for (String message: new String[]{"", "TOO LONG FOR VERSION 1 LEVEL H"}) {
+                try {
+                    QREncoder.forCurrentThread().encode(message, Level.H, 1);
+                } catch (UnableToEncodeException e) {
+                    // counted
+                }
+            }
+            boolean ok = METRICS.getTooLongFailures() - tooLong == 1 && METRICS.getErrorFailures() - errors == 1;
+            System.out.printf("%s: %s%n", "Failures test", ok ? "ok" : "failed");
+        }
+    }
+    
+    /*
+        Log-linear histogram: values below 16 have their own buckets, every power of two above
+        is split into 8 buckets, so a bucket is at most 1/8 of its values wide. Up to 2^40 ns (18 minutes),
+        longer times fall into the last bucket.
+    */
+    private static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int MAX_EXPONENT = 40;
+        
+        private final LongAdder[] buckets = adders(16 + (MAX_EXPONENT - 3) * SUB_BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder total = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+        
+        void record(long nanos) {
+            if (nanos < 0) nanos = 0;
+            buckets[bucket(nanos)].increment();
+            count.increment();
+            total.add(nanos);
+            max.accumulate(nanos);
+        }
+        
+        private static int bucket(long value) {
+            if (value < 16) return (int) value;
+            int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+            int sub = (int) Math.min(value >>> exponent - 3, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+            return 16 + (exponent - 4) * SUB_BUCKETS + sub;
+        }
+        
+        // The largest value of the bucket
+        private static long highest(int bucket) {
+            if (bucket < 16) return bucket;
+            int exponent = (bucket - 16) / SUB_BUCKETS + 4;
+            int sub = (bucket - 16) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << exponent - 3) - 1;
+        }
+        
+        StageLatency snapshot(String stage) {
+            long[] counts = new long[buckets.length];
+            long recorded = 0;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets[i].sum();
+                recorded += counts[i];
+            }
+            long highest = max.get();
+            return new StageLatency(stage, count.sum(), total.sum(),
+                                    percentile(counts, recorded, 0.50, highest),
+                                    percentile(counts, recorded, 0.90, highest),
+                                    percentile(counts, recorded, 0.99, highest),
+                                    highest);
+        }
+        
+        private static long percentile(long[] counts, long recorded, double fraction, long highest) {
+            if (recorded == 0) return 0;
+            long rank = (long) Math.ceil(fraction * recorded);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) return Math.min(highest(i), highest);
+            }
+            return highest;
+        }
+        
+        void reset() {
+            for (LongAdder bucket: buckets) bucket.reset();
+            count.reset();
+            total.reset();
+            max.reset();
+        }
+    }
+}
@@ -0,0 +1,29 @@
+import java.util.List;
+import java.util.Map;
+
+// Management interface of QRCodeMetrics, see QRCodeMetrics.register()
+public interface QRCodeMetricsMXBean {
+    
+    boolean isEnabled();
+    void setEnabled(boolean enabled);
+    
+    // Latencies of the steps of the encoding: encode, fill, split, correction, combine, markup and total
+    List<StageLatency> getStageLatencies();
+    
+    long getEncoded();
+    Map<Integer, Long> getEncodedByVersion();
+    Map<String, Long> getEncodedByLevel();
+    Map<Integer, Long> getEncodedByMask();
+    
+    // Messages too long for the level or version asked for
+    long getTooLongFailures();
+    // Encodings ended by any other exception
+    long getErrorFailures();
+    
+    long getSegmentationCacheHits();
+    long getSegmentationCacheMisses();
+    double getSegmentationCacheHitRate();
+    
+    // Zeroes all the counters except the ones of the segmentation cache
+    void reset();
+}
@@ -0,0 +1,148 @@
+import java.util.concurrent.Executor;
+
+/*
+    Encoder with its own scratch buffers: the encoded message, codewords, correction codewords
+    and a matrix for every mask. They are reused from one code to the next, so in the steady state
+    only the code itself is allocated. The buffers grow with the versions encoded and stay sized
+    for the largest of them (version 40 at most).
+    Not thread safe, an encoder belongs to one thread. QRCode.encode uses forCurrentThread().
+*/
+public final class QREncoder {
+    
+    private static final ThreadLocal<QREncoder> CURRENT = ThreadLocal.withInitial(QREncoder::new);
+    
+    // Scratch of one mask trial, every mask has its own so the masks may be tried in parallel
+    static final class Trial {
+        long[] modules = new long[0];
+        long[] columns = new long[0];
+        // one line at most 177 modules, 3 words
+        final long[] shifted = new long[3];
+        final long[] result = new long[3];
+        final long[] temp = new long[3];
+    }
+    
+    // the message encoded for every version class
+    final BitBuffer[] variants = new BitBuffer[Parser.VERSION_CLASS_FIRST.length];
+    // data codewords of all the blocks one after another
+    byte[] data = new byte[0];
+    // correction codewords of all the blocks one after another
+    byte[] correction = new byte[0];
+    final BitBuffer combined = new BitBuffer();
+    final Trial[] trials = new Trial[QRCode.NUMBER_OF_MASKS];
+    final int[] penalties = new int[QRCode.NUMBER_OF_MASKS];
+    
+    private int preparedVersion;
+    private boolean busy;
+    // start of the current encoding for QRCodeMetrics
+    long started;
+    // mask executor of the options of the current encoding, null - the masks are tried in this thread
+    Executor maskExecutor;
+    
+    public QREncoder() {
+        for (int i = 0; i < variants.length; i++) variants[i] = new BitBuffer();
+        for (int i = 0; i < trials.length; i++) trials[i] = new Trial();
+    }
+    
+    // Encoder of the calling thread. An encode called back from an encode of the same thread gets a new one.
+    public static QREncoder forCurrentThread() {
+        QREncoder encoder = CURRENT.get();
+        return encoder.busy ? new QREncoder() : encoder;
+    }
+    
+    public QRCode encode(String message) throws UnableToEncodeException {
+        begin();
+        try {
+            return encoded(QRCode.encode(message, this));
+        } catch (UnableToEncodeException | RuntimeException e) {
+            QRCodeMetrics.failed(e);
+            throw e;
+        } finally {
+            busy = false;
+        }
+    }
+    
+    public QRCode encode(String message, Level level) throws UnableToEncodeException {
+        begin();
+        try {
+            return encoded(QRCode.encode(message, level, this));
+        } catch (UnableToEncodeException | RuntimeException e) {
+            QRCodeMetrics.failed(e);
+            throw e;
+        } finally {
+            busy = false;
+        }
+    }
+    
+    public QRCode encode(String message, int version) throws UnableToEncodeException, TargetVersionException {
+        begin();
+        try {
+            return encoded(QRCode.encode(message, version, this));
+        } catch (UnableToEncodeException | RuntimeException e) {
+            QRCodeMetrics.failed(e);
+            throw e;
+        } finally {
+            busy = false;
+        }
+    }
+    
+    public QRCode encode(String message, Level level, int version) throws UnableToEncodeException, TargetVersionException {
+        begin();
+        try {
+            return encoded(QRCode.encode(message, level, version, this));
+        } catch (UnableToEncodeException | RuntimeException e) {
+            QRCodeMetrics.failed(e);
+            throw e;
+        } finally {
+            busy = false;
+        }
+    }
+    
+    public QRCode encode(String message, EncodeOptions options) throws UnableToEncodeException, TargetVersionException {
+        begin();
+        maskExecutor = options.getMaskExecutor();
+        try {
+            if (options.getVersion() == 0) return encoded(QRCode.encode(message, options.getLevel(), this));
+            return encoded(QRCode.encode(message, options.getLevel(), options.getVersion(), this));
+        } catch (UnableToEncodeException | RuntimeException e) {
+            QRCodeMetrics.failed(e);
+            throw e;
+        } finally {
+            maskExecutor = null;
+            busy = false;
+        }
+    }
+    
+    private void begin() {
+        if (busy)
+            throw new IllegalStateException("The encoder is busy, it can't be shared between threads or used from its own encode.");
+        busy = true;
+        started = QRCodeMetrics.start();
+    }
+    
+    private QRCode encoded(QRCode code) {
+        QRCodeMetrics.stage(QRCodeMetrics.TOTAL, started);
+        QRCodeMetrics.encoded(code.getLevel(), code.getVersion());
+        return code;
+    }
+    
+    // Grows the buffers to fit the codes of the version
+    void prepare(int version) {
+        if (version <= preparedVersion) return;
+        int dataCodewords = 0;
+        int correctionCodewords = 0;
+        for (Level level: Level.values()) {
+            dataCodewords = Math.max(dataCodewords, level.getSize(version) / 8);
+            correctionCodewords = Math.max(correctionCodewords, level.howManyBlocks(version) * level.getCorrectionBytesPerBlock(version));
+        }
+        data = new byte[dataCodewords];
+        correction = new byte[correctionCodewords];
+        combined.ensureCapacity((dataCodewords + correctionCodewords) * 8);
+        
+        int size = 17 + 4 * version;
+        for (Trial trial: trials) {
+            trial.modules = new long[size * BitMatrix.wordsPerRow(size)];
+            trial.columns = new long[size * BitMatrix.wordsPerRow(size)];
+        }
+        preparedVersion = version;
+    }
+}
@@ -2,62 +2,79 @@ import javax.swing.JFrame;
 import javax.swing.JPanel;
 import java.awt.Dimension;
 import java.awt.Graphics;
-import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
 
 class QRPic {
-
-    private int moduleSize;
-    private byte[][] code;
     
-    QRPic (int moduleSize, byte[][] code) {
+    private final int moduleSize;
+    // quiet zone around the code, modules
+    private static final int BORDER = 4;
+    // the code with the quiet zone, a pixel per module
+    private final BufferedImage image;
+    
+    QRPic (int moduleSize, BitMatrix code) {
         this.moduleSize = moduleSize;
-        this.code = code;
+        image = render(code);
     }
-
+    
+    // Dark modules are 0 bits, light ones 1 bits of the black and white palette of TYPE_BYTE_BINARY
+    private static BufferedImage render(BitMatrix code) {
+        int size = code.getSize() + 2 * BORDER;
+        BufferedImage image = new BufferedImage(size, size, BufferedImage.TYPE_BYTE_BINARY);
+        byte[] pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        int stride = (size + 7) / 8;
+        Arrays.fill(pixels, (byte) 0xFF);
+        code.forEachDarkRun((x, y, length) -> {
+            int row = (y + BORDER) * stride;
+            for (int pixel = x + BORDER; pixel < x + BORDER + length; pixel++) {
+                pixels[row + (pixel >>> 3)] &= ~(0x80 >>> (pixel & 7));
+            }
+        });
+        return image;
+    }
+    
     class QRPanel extends JPanel {
+        // the image scaled to the panel, it is made again only when the panel is resized
+        private BufferedImage scaled;
+        
+        QRPanel() {
+            setPreferredSize(new Dimension(moduleSize * image.getWidth(), moduleSize * image.getHeight()));
+        }
+        
         @Override
         public void paintComponent(Graphics canvas) {
             super.paintComponent(canvas);
-            Module m;
-            for (int i = 0; i < code.length; i++) {
-                for (int j = 0; j < code[i].length; j++) {
-                    m = new Module(j * moduleSize, i * moduleSize, moduleSize, code[i][j] == 1);
-                    m.draw(canvas);
-                }
-            }
+            // whole pixels per module keep the modules sharp
+            int scale = Math.max(1, Math.min(getWidth(), getHeight()) / image.getWidth());
+            int side = scale * image.getWidth();
+            if (scaled == null || scaled.getWidth() != side) scaled = scale(side, getGraphicsConfiguration());
+            canvas.drawImage(scaled, 0, 0, null);
         }
     }
     
+    // Nearest neighbour, every module becomes a square of pixels. The image is in the format of the screen
+    // (while the panel is not shown - RGB), so painting is a plain copy without conversion.
+    private BufferedImage scale(int side, GraphicsConfiguration screen) {
+        BufferedImage scaled = screen != null ? screen.createCompatibleImage(side, side)
+                                              : new BufferedImage(side, side, BufferedImage.TYPE_INT_RGB);
+        Graphics2D canvas = scaled.createGraphics();
+        canvas.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        canvas.drawImage(image, 0, 0, side, side, null);
+        canvas.dispose();
+        return scaled;
+    }
+    
     public void show() {
         JFrame frame = new JFrame("WRABZY's QR Code");
         frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         JPanel panel = new QRPanel();
         frame.getContentPane().add(panel);
-        frame.setSize(new Dimension(moduleSize * code.length + 3 * moduleSize, moduleSize * code.length + 6 * moduleSize));
+        frame.pack();
         frame.setVisible(true);
     }
-    
-    private class Module {
-        private int x;
-        private int y;
-        private int size;
-        private Color color;
-        
-        Module(int x, int y, int size, boolean black) {
-            this.x = x;
-            this.y = y;
-            this.size = size;
-            color = black ? Color.BLACK : Color.WHITE;
-        }
-        
-        public void draw(Graphics canvas) {
-            canvas.setColor(color);
-            canvas.fillRect(x, y, x + size, y + size);
-        }
-    }
 }
-
-
-
-    
-    
\ No newline at end of file
@@ -0,0 +1,368 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+
+/*
+    Thread-safe cache of rendered codes in front of QRCode.encode and the renderers,
+    keyed by the content: message, level and version (EncodeOptions), format and RenderOptions.
+    - LRU within a budget of bytes, the weight of an entry is the size of the output and the message.
+      An output larger than the whole budget is returned but not kept.
+      As in BoundedCache the hits don't lock: the entries are in a ConcurrentHashMap and a hit stamps
+      the time of the access on its entry. Over the budget one thread takes the eviction lock and removes
+      the expired and the least recently used entries down to 15/16 of the budget.
+    - Optional time to live, counted from the rendering.
+    - Single flight: concurrent misses on the same key wait for one encoding instead of doing their own.
+    Outputs are shared between the callers: PNG and SVG as read-only buffers, the matrix is immutable.
+    Hits are the requests answered without encoding, waiting for the encoding of another request included.
+    PNG is rendered with writers borrowed from a pool of at most one per processor, close() frees their Deflaters.
+*/
+public final class RenderCache implements AutoCloseable {
+    
+    private enum Format { MATRIX, PNG, SVG }
+    
+    // for the key, the message and the references of the entry
+    private static final int ENTRY_OVERHEAD = 96;
+    
+    private final long maxBytes;
+    private final long timeToLive;
+    private final int compressionLevel;
+    
+    private final ConcurrentHashMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ConcurrentHashMap<Key, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+    
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    
+    // idle PNG writers, a writer keeps its Deflater
+    private final ArrayBlockingQueue<PngWriter> pngWriters = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors());
+    private volatile boolean closed;
+    
+    public RenderCache(long maxBytes) {
+        this(maxBytes, null, Deflater.DEFAULT_COMPRESSION);
+    }
+    
+    // timeToLive - null or zero for entries that don't expire
+    public RenderCache(long maxBytes, Duration timeToLive, int compressionLevel) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Cache budget (" + maxBytes + " bytes) must not be negative.");
+        if (timeToLive != null && timeToLive.isNegative())
+            throw new IllegalArgumentException("Time to live (" + timeToLive + ") must not be negative.");
+        this.maxBytes = maxBytes;
+        this.timeToLive = timeToLive == null ? 0 : timeToLive.toNanos();
+        this.compressionLevel = compressionLevel;
+        // fails on a wrong level here and not in the first rendering
+        new PngWriter(RenderOptions.defaults(), compressionLevel).close();
+    }
+    
+    public BitMatrix matrix(String message, EncodeOptions options) throws UnableToEncodeException {
+        return (BitMatrix) get(message, options, Format.MATRIX, null).value;
+    }
+    
+    public ByteBuffer png(String message, EncodeOptions options, RenderOptions renderOptions) throws UnableToEncodeException {
+        return ((ByteBuffer) get(message, options, Format.PNG, renderOptions).value).duplicate();
+    }
+    
+    // UTF-8
+    public ByteBuffer svg(String message, EncodeOptions options, RenderOptions renderOptions) throws UnableToEncodeException {
+        return ((ByteBuffer) get(message, options, Format.SVG, renderOptions).value).duplicate();
+    }
+    
+    public CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+    
+    // Weight of all the entries
+    public long getBytes() {
+        return bytes.get();
+    }
+    
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+    
+    public void clear() {
+        entries.forEach((key, entry) -> {
+            if (entries.remove(key, entry)) bytes.addAndGet(-entry.weight);
+        });
+    }
+    
+    // Frees the Deflaters of the idle PNG writers. The cache still works, PNG then gets a new writer every time.
+    @Override
+    public void close() {
+        closed = true;
+        for (PngWriter writer = pngWriters.poll(); writer != null; writer = pngWriters.poll()) writer.close();
+    }
+    
+    private Entry get(String message, EncodeOptions options, Format format, RenderOptions renderOptions) throws UnableToEncodeException {
+        QRCode.checkMessage(message);
+        Key key = new Key(message, options, format, renderOptions);
+        Entry entry = cached(key);
+        if (entry != null) {
+            hits.increment();
+            return entry;
+        }
+        CompletableFuture<Entry> load = new CompletableFuture<>();
+        CompletableFuture<Entry> running = loading.putIfAbsent(key, load);
+        if (running != null) {
+            hits.increment();
+            return await(running);
+        }
+        try {
+            // stored by a load that ended between the lookup and putIfAbsent
+            entry = cached(key);
+            if (entry != null) {
+                hits.increment();
+                load.complete(entry);
+                return entry;
+            }
+            misses.increment();
+            entry = render(key);
+            store(key, entry);
+            load.complete(entry);
+            return entry;
+        } catch (Throwable e) {
+            // errors too, the waiting threads must not hang
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+    
+    private Entry cached(Key key) {
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+        if (entry.expired()) {
+            remove(key, entry);
+            return null;
+        }
+        entry.accessed = System.nanoTime();
+        return entry;
+    }
+    
+    private void remove(Key key, Entry entry) {
+        if (!entries.remove(key, entry)) return;
+        bytes.addAndGet(-entry.weight);
+        evictions.increment();
+    }
+    
+    // The result of the encoding of another thread, its failure is the failure of this request too
+    private static Entry await(CompletableFuture<Entry> running) throws UnableToEncodeException {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UnableToEncodeException) throw (UnableToEncodeException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+    
+    private Entry render(Key key) throws UnableToEncodeException {
+        BitMatrix code = QRCode.encode(key.message, key.options).getCode();
+        Object value;
+        long size;
+        switch (key.format) {
+            case MATRIX:
+                value = code;
+                size = 8L * code.words().length;
+                break;
+            case PNG:
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                PngWriter writer = pngWriters.poll();
+                if (writer == null) writer = new PngWriter(RenderOptions.defaults(), compressionLevel);
+                try {
+                    writer.write(code, key.renderOptions, png);
+                } catch (IOException e) {
+                    throw new IllegalStateException("Writing into memory failed.", e);
+                } finally {
+                    // a full pool or a closed cache doesn't keep it
+                    if (closed || !pngWriters.offer(writer)) writer.close();
+                }
+                value = ByteBuffer.wrap(png.toByteArray()).asReadOnlyBuffer();
+                size = png.size();
+                break;
+            default:
+                byte[] svg = new SvgWriter(key.renderOptions).toSvg(code).getBytes(StandardCharsets.UTF_8);
+                value = ByteBuffer.wrap(svg).asReadOnlyBuffer();
+                size = svg.length;
+        }
+        long expiresAt = timeToLive == 0 ? 0 : System.nanoTime() + timeToLive;
+        return new Entry(value, ENTRY_OVERHEAD + size + 2L * key.message.length(), expiresAt);
+    }
+    
+    private void store(Key key, Entry entry) {
+        if (entry.weight > maxBytes) return;
+        Entry replaced = entries.put(key, entry);
+        bytes.addAndGet(entry.weight - (replaced == null ? 0 : replaced.weight));
+        // as in BoundedCache.put: the evicting thread checks again, at twice the budget the stores wait for it
+        while (bytes.get() > maxBytes) {
+            if (bytes.get() - maxBytes > maxBytes) evictionLock.lock();
+            else if (!evictionLock.tryLock()) break;
+            try {
+                evict();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+    
+    // Called under the eviction lock. The expired entries go first, then the least recently used ones
+    // down to 15/16 of the budget.
+    private void evict() {
+        long target = maxBytes - maxBytes / 16;
+        List<Map.Entry<Key, Entry>> snapshot = new ArrayList<>(entries.entrySet());
+        // the stamps are copied, the hits go on changing them
+        long[] stamps = new long[snapshot.size()];
+        for (int i = 0; i < stamps.length; i++) {
+            Entry entry = snapshot.get(i).getValue();
+            stamps[i] = entry.expired() ? Long.MIN_VALUE : entry.accessed;
+        }
+        Integer[] order = new Integer[stamps.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, (a, b) -> Long.compare(stamps[a], stamps[b]));
+        for (int i = 0; i < order.length && (bytes.get() > target || stamps[order[i]] == Long.MIN_VALUE); i++) {
+            Map.Entry<Key, Entry> eldest = snapshot.get(order[i]);
+            remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        { // Single flight test: concurrent requests of a code that is not cached encode it once
+            RenderCache cache = new RenderCache(1 << 20);
+            String message = "SINGLE FLIGHT ".repeat(150);
+            int threads = 64;
+            CountDownLatch start = new CountDownLatch(1);
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            List<Future<ByteBuffer>> pngs = new ArrayList<>();
+            long encoded = QRCodeMetrics.get().getEncoded();
+            for (int i = 0; i < threads; i++) {
+                pngs.add(executor.submit(() -> {
+                    start.await();
+                    return cache.png(message, EncodeOptions.defaults(), RenderOptions.defaults());
+                }));
+            }
+            start.countDown();
+            boolean same = true;
+            for (Future<ByteBuffer> png: pngs) same = same && png.get().equals(pngs.get(0).get());
+            executor.shutdown();
+            CacheStats stats = cache.stats();
+            boolean ok = same && QRCodeMetrics.get().getEncoded() - encoded == 1 && stats.getMisses() == 1 && stats.getHits() == threads - 1;
+            cache.close();
+            System.out.printf("%s: %s%n", "Single flight test", ok ? "ok" : "failed");
+        }
+        
+        { // Time to live test: an expired code is encoded again
+            RenderCache cache = new RenderCache(1 << 20, Duration.ofMillis(50), Deflater.DEFAULT_COMPRESSION);
+            cache.png("TIME TO LIVE", EncodeOptions.defaults(), RenderOptions.defaults());
+            cache.png("TIME TO LIVE", EncodeOptions.defaults(), RenderOptions.defaults());
+            Thread.sleep(80);
+            cache.png("TIME TO LIVE", EncodeOptions.defaults(), RenderOptions.defaults());
+            CacheStats stats = cache.stats();
+            boolean ok = stats.getHits() == 1 && stats.getMisses() == 2 && stats.getEvictions() == 1 && stats.getSize() == 1;
+            cache.close();
+            System.out.printf("%s: %s%n", "Time to live test", ok ? "ok" : "failed");
+        }
+        
+        { // Close test: the idle writers are freed, a closed cache still renders
+            RenderCache cache = new RenderCache(1 << 20);
+            ByteBuffer before = cache.png("CLOSE", EncodeOptions.defaults(), RenderOptions.defaults().withScale(2));
+            boolean pooled = cache.pngWriters.size() == 1;
+            cache.close();
+            ByteBuffer after = cache.png("CLOSE", EncodeOptions.defaults(), RenderOptions.defaults().withScale(3));
+            boolean ok = pooled && cache.pngWriters.isEmpty() && before.remaining() > 0 && after.remaining() > 0;
+            System.out.printf("%s: %s%n", "Close test", ok ? "ok" : "failed");
+        }
+        
+        { // Budget test: the least recently used codes go, the weight stays within the budget
+            RenderCache cache = new RenderCache(3000);
+            for (int i = 0; i < 100; i++) cache.svg("BUDGET " + i, EncodeOptions.defaults(), RenderOptions.defaults());
+            CacheStats stats = cache.stats();
+            long evictions = stats.getEvictions();
+            // the last one is kept, the first one is not
+            cache.svg("BUDGET 99", EncodeOptions.defaults(), RenderOptions.defaults());
+            cache.svg("BUDGET 0", EncodeOptions.defaults(), RenderOptions.defaults());
+            boolean ok = cache.getBytes() <= cache.getMaxBytes() && stats.getSize() > 0 && stats.getSize() < 100
+                && evictions == 100 - stats.getSize() && cache.stats().getHits() == 1 && cache.stats().getMisses() == 101;
+            cache.close();
+            System.out.printf("%s: %s%n", "Budget test", ok ? "ok" : "failed");
+        }
+    }
+    
+    private static final class Entry {
+        final Object value;
+        final long weight;
+        // System.nanoTime(), 0 - never
+        final long expiresAt;
+        // System.nanoTime() of the last access, written without synchronization as in BoundedCache
+        long accessed;
+        
+        Entry(Object value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            accessed = System.nanoTime();
+        }
+        
+        boolean expired() {
+            return expiresAt != 0 && System.nanoTime() - expiresAt >= 0;
+        }
+    }
+    
+    private static final class Key {
+        final String message;
+        final EncodeOptions options;
+        final Format format;
+        final RenderOptions renderOptions;
+        private final int hash;
+        
+        // Only the level and the version of the options make the code, the executor doesn't
+        Key(String message, EncodeOptions options, Format format, RenderOptions renderOptions) {
+            Objects.requireNonNull(options, "options");
+            if (format != Format.MATRIX) Objects.requireNonNull(renderOptions, "renderOptions");
+            this.message = message;
+            this.options = options;
+            this.format = format;
+            this.renderOptions = renderOptions;
+            hash = Objects.hash(message, options.getLevel(), options.getVersion(), format, renderOptions);
+        }
+        
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) return true;
+            if (!(other instanceof Key)) return false;
+            Key key = (Key) other;
+            return hash == key.hash && message.equals(key.message) && options.getLevel() == key.options.getLevel()
+                && options.getVersion() == key.options.getVersion() && format == key.format
+                && Objects.equals(renderOptions, key.renderOptions);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+// Immutable settings of the renderers, every with* method returns a changed copy
+public final class RenderOptions {
+    
+    private static final RenderOptions DEFAULTS = new RenderOptions(4, 4);
+    
+    // pixels per module side
+    private final int scale;
+    // light modules around the code, the standard asks for 4
+    private final int quietZone;
+    
+    private RenderOptions(int scale, int quietZone) {
+        this.scale = scale;
+        this.quietZone = quietZone;
+    }
+    
+    public static RenderOptions defaults() {
+        return DEFAULTS;
+    }
+    
+    public RenderOptions withScale(int scale) {
+        if (scale < 1)
+            throw new IllegalArgumentException("Scale must be at least 1 pixel per module, but was " + scale + ".");
+        return new RenderOptions(scale, quietZone);
+    }
+    
+    public RenderOptions withQuietZone(int quietZone) {
+        if (quietZone < 0)
+            throw new IllegalArgumentException("Quiet zone can't be negative, but was " + quietZone + ".");
+        return new RenderOptions(scale, quietZone);
+    }
+    
+    public int getScale() { return scale; }
+    public int getQuietZone() { return quietZone; }
+    
+    // Side of the picture of the code in pixels
+    public int imageSize(BitMatrix code) {
+        long size = (long) (code.getSize() + 2 * quietZone) * scale;
+        if (size > Integer.MAX_VALUE / 2)
+            throw new IllegalArgumentException("The picture " + size + "x" + size + " is too large, lower the scale or the quiet zone.");
+        return (int) size;
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) return true;
+        if (!(other instanceof RenderOptions)) return false;
+        RenderOptions options = (RenderOptions) other;
+        return scale == options.scale && quietZone == options.quietZone;
+    }
+    
+    @Override
+    public int hashCode() {
+        return 31 * scale + quietZone;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("RenderOptions[scale=%d, quietZone=%d]", scale, quietZone);
+    }
+}
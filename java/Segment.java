@@ -1,33 +1,42 @@
-import java.util.function.BiFunction;
-
 class Segment {
-    private final String segment;
+    private final String message;
     private final int from;
-    private final BiFunction<String, Integer, byte[]> applicableCoder;
+    private final int to;
+    private final Coder.SegmentCoder applicableCoder;
     private final String coderType;
-
-    Segment(String segment, int from, BiFunction coder, String coderType) {
-        this.segment = segment;
+    
+    // The segment is message[from, to), the message itself is not copied
+    Segment(String message, int from, int to, Coder.SegmentCoder coder, String coderType) {
+        this.message = message;
         this.from = from;
+        this.to = to;
         applicableCoder = coder;
         this.coderType = coderType;
     }
     
     public String getContent() {
-        return segment;
+        return message.substring(from, to);
     }
     
     public int getStartIndex() {
         return from;
     }
     
-    public BiFunction<String, Integer, byte[]> getCoder() {
+    public int getEndIndex() {
+        return to;
+    }
+    
+    public Coder.SegmentCoder getCoder() {
         return applicableCoder;
     }
     
+    public void encode(int version, BitBuffer sink) {
+        applicableCoder.encode(message, from, to, version, sink);
+    }
+    
     @Override
     public String toString() {
-        return String.format("S[%s]:%d:%s", segment, from, coderType);
+        return String.format("S[%s]:%d:%s", getContent(), from, coderType);
         
     }
 }
\ No newline at end of file
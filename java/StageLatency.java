@@ -0,0 +1,43 @@
+import javax.management.ConstructorParameters;
+
+// Snapshot of the latencies of one step of the encoding, in nanoseconds. Percentiles are within 1/8 of the value.
+public final class StageLatency {
+    
+    private final String stage;
+    private final long count;
+    private final long totalNanos;
+    private final long p50Nanos;
+    private final long p90Nanos;
+    private final long p99Nanos;
+    private final long maxNanos;
+    
+    // The MXBean proxies (JMX.newMXBeanProxy) rebuild a snapshot from its CompositeData with this constructor
+    @ConstructorParameters({"stage", "count", "totalNanos", "p50Nanos", "p90Nanos", "p99Nanos", "maxNanos"})
+    public StageLatency(String stage, long count, long totalNanos, long p50Nanos, long p90Nanos, long p99Nanos, long maxNanos) {
+        this.stage = stage;
+        this.count = count;
+        this.totalNanos = totalNanos;
+        this.p50Nanos = p50Nanos;
+        this.p90Nanos = p90Nanos;
+        this.p99Nanos = p99Nanos;
+        this.maxNanos = maxNanos;
+    }
+    
+    public String getStage() { return stage; }
+    public long getCount() { return count; }
+    public long getTotalNanos() { return totalNanos; }
+    public long getP50Nanos() { return p50Nanos; }
+    public long getP90Nanos() { return p90Nanos; }
+    public long getP99Nanos() { return p99Nanos; }
+    public long getMaxNanos() { return maxNanos; }
+    
+    public long getMeanNanos() {
+        return count == 0 ? 0 : totalNanos / count;
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("StageLatency[%s: count=%d, mean=%d, p50=%d, p90=%d, p99=%d, max=%d ns]",
+                             stage, count, getMeanNanos(), p50Nanos, p90Nanos, p99Nanos, maxNanos);
+    }
+}
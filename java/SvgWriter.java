@@ -0,0 +1,132 @@
+import java.awt.geom.Path2D;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+    Vector renderer of codes: every horizontal run of dark modules is one segment of a single path,
+    so the output grows with the runs, not with the modules. SVG is written straight to an Appendable,
+    a run is a line 1 module thick through the middle of its row. Path2D is for Java2D, a run is a rectangle.
+    The coordinates are in modules, the quiet zone included; the scale of the options sets the size
+    of the SVG picture in pixels.
+    Immutable, may be shared between threads.
+*/
+public final class SvgWriter {
+    
+    private final RenderOptions options;
+    
+    public SvgWriter() {
+        this(RenderOptions.defaults());
+    }
+    
+    public SvgWriter(RenderOptions options) {
+        this.options = options;
+    }
+    
+    public RenderOptions getOptions() {
+        return options;
+    }
+    
+    public String toSvg(BitMatrix code) {
+        // about a run of 8 characters per 4 modules
+        StringBuilder svg = new StringBuilder(256 + 2 * code.getSize() * code.getSize());
+        try {
+            write(code, svg);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing into memory failed.", e);
+        }
+        return svg.toString();
+    }
+    
+    public void write(BitMatrix code, Appendable out) throws IOException {
+        int quietZone = options.getQuietZone();
+        int modules = code.getSize() + 2 * quietZone;
+        int pixels = options.imageSize(code);
+        out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"" + pixels + "\" height=\"" + pixels +
+                   "\" viewBox=\"0 0 " + modules + " " + modules + "\" shape-rendering=\"crispEdges\">\n" +
+                   "<rect width=\"100%\" height=\"100%\" fill=\"#fff\"/>\n" +
+                   "<path stroke=\"#000\" d=\"");
+        int size = code.getSize();
+        // a row is built apart and goes out in one append
+        StringBuilder row = new StringBuilder(8 * size);
+        for (int y = 0; y < size; y++) {
+            row.setLength(0);
+            int x = code.nextDark(y, 0);
+            int end = 0;
+            while (x < size) {
+                // the first run of the row from the left edge, the next ones from the end of the previous run
+                if (end == 0) row.append('M').append(quietZone + x).append(' ').append(quietZone + y).append(".5h");
+                else row.append('m').append(x - end).append(" 0h");
+                end = code.nextLight(y, x);
+                row.append(end - x);
+                x = code.nextDark(y, end);
+            }
+            out.append(row);
+        }
+        out.append("\"/>\n</svg>\n");
+    }
+    
+    // Dark modules as a path in modules, the quiet zone included
+    public Path2D.Float toPath(BitMatrix code) {
+        int quietZone = options.getQuietZone();
+        Path2D.Float path = new Path2D.Float();
+        code.forEachDarkRun((x, y, length) -> {
+            float left = quietZone + x;
+            float top = quietZone + y;
+            path.moveTo(left, top);
+            path.lineTo(left + length, top);
+            path.lineTo(left + length, top + 1);
+            path.lineTo(left, top + 1);
+            path.closePath();
+        });
+        return path;
+    }
+    
+    public static void main(String[] args) throws Exception {
+        BitMatrix code = QRCode.encode("HELLO WORLD 0123456789 hello world", Level.Q).getCode();
+        int size = code.getSize();
+        
+        { // Path test: the centre of a module is inside the path exactly when the module is dark
+            for (int quietZone: new int[]{0, 4}) {
+                SvgWriter writer = new SvgWriter(RenderOptions.defaults().withQuietZone(quietZone));
+                Path2D.Float path = writer.toPath(code);
+                boolean equal = true;
+                for (int y = -quietZone; y < size + quietZone; y++) {
+                    for (int x = -quietZone; x < size + quietZone; x++) {
+                        boolean dark = x >= 0 && y >= 0 && x < size && y < size && code.get(x, y);
+                        equal = equal && path.contains(quietZone + x + 0.5, quietZone + y + 0.5) == dark;
+                    }
+                }
+                System.out.printf("%s: %s%n", "Path test, quiet zone " + quietZone, equal ? "ok" : "failed");
+            }
+        }
+        
+        { // SVG test: the runs drawn by the path of the SVG are the dark modules
+            int quietZone = 2;
+            String svg = new SvgWriter(RenderOptions.defaults().withQuietZone(quietZone)).toSvg(code);
+            String d = svg.substring(svg.indexOf(" d=\"") + 4, svg.lastIndexOf('"'));
+            boolean[][] drawn = new boolean[size][size];
+            Matcher run = Pattern.compile("([Mm])(\\d+) (\\d+)(?:\\.5)?h(\\d+)").matcher(d);
+            int x = 0;
+            int y = 0;
+            int end = 0;
+            boolean parsed = true;
+            while (run.find()) {
+                if (run.group(1).equals("M")) {
+                    x = Integer.parseInt(run.group(2)) - quietZone;
+                    y = Integer.parseInt(run.group(3)) - quietZone;
+                } else {
+                    x = end + Integer.parseInt(run.group(2));
+                }
+                end = x + Integer.parseInt(run.group(4));
+                parsed = parsed && x >= 0 && end <= size && y >= 0 && y < size;
+                for (int i = x; parsed && i < end; i++) drawn[y][i] = true;
+            }
+            boolean equal = parsed;
+            for (int i = 0; equal && i < size; i++) {
+                for (int j = 0; equal && j < size; j++) equal = drawn[i][j] == code.get(j, i);
+            }
+            System.out.printf("%s: %s%n", "SVG test", equal ? "ok" : "failed");
+        }
+    }
+}
@@ -8,4 +8,8 @@ public class TargetVersionException extends UnableToEncodeException {
     TargetVersionException(String message) {
         super(message);
     }
+
+    TargetVersionException(String message, boolean tooLong) {
+        super(message, tooLong);
+    }
 }
\ No newline at end of file
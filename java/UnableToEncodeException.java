@@ -2,11 +2,24 @@
 
 public class UnableToEncodeException  extends Exception {
 
+    // the message doesn't fit the level or the version, not a bad argument
+    private final boolean tooLong;
+
     UnableToEncodeException() {
         super();
+        tooLong = false;
     }
 
     UnableToEncodeException(String message) {
+        this(message, false);
+    }
+
+    UnableToEncodeException(String message, boolean tooLong) {
         super(message);
+        this.tooLong = tooLong;
+    }
+
+    boolean isTooLong() {
+        return tooLong;
     }
 }
\ No newline at end of file
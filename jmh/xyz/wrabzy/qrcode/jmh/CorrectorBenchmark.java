@@ -0,0 +1,75 @@
+package xyz.wrabzy.qrcode.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Scalar and vector Reed-Solomon side by side: correction codewords of all the blocks of a version
+    and a level. The versions from which the vector one is faster make VECTOR_FROM_VERSION of Corrector
+    (-Dxyz.wrabzy.qrcode.vectorCorrectionFromVersion). The forks run with the incubator module,
+    the vector implementation is not there without it.
+*/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class CorrectorBenchmark {
+    
+    @Param({"1", "5", "8", "9", "10", "11", "12", "15", "20", "25", "30", "35", "40"})
+    int version;
+    
+    @Param({"L", "M", "Q", "H"})
+    String level;
+    
+    @Param({"scalar", "vector"})
+    String implementation;
+    
+    private Object corrector;
+    private byte[] data;
+    private byte[] correction;
+    private int[] blockLengths;
+    private int n;
+    
+    @Setup
+    public void setUp() throws Throwable {
+        MethodHandle implementationField = implementation.equals("vector") ? Library.VECTOR : Library.SCALAR;
+        corrector = (Object) implementationField.invokeExact();
+        if (corrector == null)
+            throw new IllegalStateException("There is no " + implementation + " corrector, is jdk.incubator.vector added?");
+        Object levelValue = Library.level(level);
+        int bytes = (int) Library.LEVEL_GET_SIZE.invokeExact(levelValue, version) / 8;
+        int nOfBlocks = (int) Library.HOW_MANY_BLOCKS.invokeExact(levelValue, version);
+        n = (int) Library.CORRECTION_BYTES_PER_BLOCK.invokeExact(levelValue, version);
+        // the shorter blocks first, as in Corrector.makeCorrectionBlocks
+        blockLengths = new int[nOfBlocks];
+        for (int i = 0; i < nOfBlocks; i++) blockLengths[i] = bytes / nOfBlocks + (i >= nOfBlocks - bytes % nOfBlocks ? 1 : 0);
+        data = new byte[bytes];
+        new Random(version).nextBytes(data);
+        correction = new byte[nOfBlocks * n];
+    }
+    
+    @Benchmark
+    public byte[] correctionBlocks() throws Throwable {
+        int from = 0;
+        for (int i = 0; i < blockLengths.length; i++) {
+            Library.MAKE_CORRECTION_BYTES.invokeExact(corrector, data, from, blockLengths[i], correction, i * n, n);
+            from += blockLengths[i];
+        }
+        return correction;
+    }
+}
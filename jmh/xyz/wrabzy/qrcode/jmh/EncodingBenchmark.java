@@ -0,0 +1,186 @@
+package xyz.wrabzy.qrcode.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+    Stages of the encoding one by one and the whole QRCode.encode, for every version, level and payload.
+    The message is the longest one of the payload that fits the version and the level.
+    - coder: the message in one segment of its mode
+    - segmentingVariants: the parser with its cache off, every call parses the message again
+    - correctionBlocks: correction codewords of all the blocks of the version
+    - markup: all the masks tried and rated, the default sequential way
+    - tryOnMask, rateTheMask: one mask
+    - encode: the whole encoding through the public API, the segmenting cache on as by default
+    Data codewords and the bits placed by markup are random, the stages don't depend on them much.
+*/
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EncodingBenchmark {
+    
+    @Param({"1", "10", "25", "40"})
+    int version;
+    
+    @Param({"L", "M", "Q", "H"})
+    String level;
+    
+    @Param({"numeric", "alphanumeric", "binary"})
+    String payload;
+    
+    private Object levelValue;
+    private String message;
+    private MethodHandle coder;
+    private Object bits;
+    private byte[] data;
+    private byte[] correction;
+    private Object qred;
+    private Object encoder;
+    private Object template;
+    private Object trial;
+    private long[] modules;
+    private int size;
+    
+    @Setup
+    public void setUp() throws Throwable {
+        levelValue = Library.level(level);
+        message = longestMessage(payload, levelValue, version);
+        switch (payload) {
+            case "numeric": coder = Library.ENCODE_NUMERIC; break;
+            case "alphanumeric": coder = Library.ENCODE_ALPHANUMERIC; break;
+            default: coder = Library.ENCODE_BINARY;
+        }
+        bits = Library.newBitBuffer(8 * message.length() + 32);
+        
+        Random random = new Random(version);
+        int dataBytes = (int) Library.LEVEL_GET_SIZE.invokeExact(levelValue, version) / 8;
+        int blocks = (int) Library.HOW_MANY_BLOCKS.invokeExact(levelValue, version);
+        int correctionBytes = blocks * (int) Library.CORRECTION_BYTES_PER_BLOCK.invokeExact(levelValue, version);
+        data = new byte[dataBytes];
+        random.nextBytes(data);
+        correction = new byte[correctionBytes];
+        
+        // codewords and the remainder bits, the cells of the template beyond them stay light
+        qred = Library.newBitBuffer(8 * (dataBytes + correctionBytes) + 7);
+        for (int i = 0; i < dataBytes + correctionBytes; i++) Library.APPEND_BITS.invokeExact(qred, random.nextInt(256), 8);
+        
+        encoder = Library.newInstance(Library.QR_ENCODER);
+        Library.PREPARE.invokeExact(encoder, version);
+        template = (Object) Library.TEMPLATE.invokeExact(version);
+        trial = ((Object[]) (Object) Library.TRIALS.invokeExact(encoder))[0];
+        modules = (long[]) Library.MODULES.invokeExact(trial);
+        size = 17 + 4 * version;
+        // rateTheMask rates a code, not an empty matrix
+        Library.TRY_ON_MASK.invokeExact(qred, levelValue, 0, template, modules);
+    }
+    
+    // The parser cache off for the parser benchmark only, the capacity it had is back after the trial
+    @State(Scope.Benchmark)
+    public static class SegmentCacheOff {
+        private int capacity;
+        
+        @Setup
+        public void turnOff() throws Throwable {
+            capacity = (int) Library.GET_CACHE_CAPACITY.invokeExact();
+            Library.SET_CACHE_CAPACITY.invokeExact(0);
+        }
+        
+        @TearDown
+        public void restore() throws Throwable {
+            Library.SET_CACHE_CAPACITY.invokeExact(capacity);
+        }
+    }
+    
+    @Benchmark
+    public Object coder() throws Throwable {
+        Library.CLEAR.invokeExact(bits);
+        coder.invokeExact(message, version, bits);
+        return bits;
+    }
+    
+    @Benchmark
+    public List<?> segmentingVariants(SegmentCacheOff cacheOff) throws Throwable {
+        return (List<?>) Library.DEFINE_SEGMENTING_VARIANTS.invokeExact(message);
+    }
+    
+    @Benchmark
+    public byte[] correctionBlocks() throws Throwable {
+        Library.MAKE_CORRECTION_BLOCKS.invokeExact(data, levelValue, version, correction);
+        return correction;
+    }
+    
+    @Benchmark
+    public Object markup() throws Throwable {
+        return (Object) Library.MARKUP.invokeExact(qred, levelValue, version, encoder);
+    }
+    
+    @Benchmark
+    public long[] tryOnMask() throws Throwable {
+        Library.TRY_ON_MASK.invokeExact(qred, levelValue, 0, template, modules);
+        return modules;
+    }
+    
+    @Benchmark
+    public int rateTheMask() throws Throwable {
+        return (int) Library.RATE_THE_MASK.invokeExact(trial, size, Integer.MAX_VALUE);
+    }
+    
+    @Benchmark
+    public Object encode() throws Throwable {
+        return (Object) Library.ENCODE.invokeExact(message, levelValue, version);
+    }
+    
+    // Binary search of the length, the characters repeat a pattern of the mode
+    static String longestMessage(String payload, Object level, int version) throws Throwable {
+        String pattern;
+        switch (payload) {
+            case "numeric": pattern = "0123456789"; break;
+            case "alphanumeric": pattern = "HELLO WORLD $%*+-./:0123456789"; break;
+            case "binary": pattern = "The quick brown fox jumps over the lazy dog! "; break;
+            default: throw new IllegalArgumentException("There is no payload " + payload + ".");
+        }
+        int fits = 1;
+        int doesNot = 8000;
+        while (fits + 1 < doesNot) {
+            int length = (fits + doesNot) >>> 1;
+            if (fits(message(pattern, length), level, version)) fits = length;
+            else doesNot = length;
+        }
+        return message(pattern, fits);
+    }
+    
+    private static String message(String pattern, int length) {
+        StringBuilder message = new StringBuilder(length);
+        while (message.length() < length) message.append(pattern);
+        message.setLength(length);
+        return message.toString();
+    }
+    
+    private static boolean fits(String message, Object level, int version) throws Throwable {
+        try {
+            Object code = (Object) Library.ENCODE.invokeExact(message, level, version);
+            return (int) Library.GET_VERSION.invokeExact(code) == version;
+        } catch (Throwable e) {
+            if (Library.UNABLE_TO_ENCODE.isInstance(e)) return false;
+            throw e;
+        }
+    }
+}
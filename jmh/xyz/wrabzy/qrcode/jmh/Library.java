@@ -0,0 +1,116 @@
+package xyz.wrabzy.qrcode.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/*
+    The library is in the default package, which can't be named from the classes of a package,
+    and JMH doesn't take benchmarks in the default package. So the benchmarks reach the library
+    through method handles: the library types in the signatures are erased to Object.
+    The handles are static finals, the JIT inlines them like direct calls.
+*/
+final class Library {
+    
+    static final Class<?> LEVEL = type("Level");
+    static final Class<?> BIT_BUFFER = type("BitBuffer");
+    static final Class<?> QR_ENCODER = type("QREncoder");
+    static final Class<?> UNABLE_TO_ENCODE = type("UnableToEncodeException");
+    
+    // Coder.encode*(String message, int version, BitBuffer sink)
+    static final MethodHandle ENCODE_NUMERIC = method("Coder", "encodeNumeric", String.class, int.class, BIT_BUFFER);
+    static final MethodHandle ENCODE_ALPHANUMERIC = method("Coder", "encodeAlphanumeric", String.class, int.class, BIT_BUFFER);
+    static final MethodHandle ENCODE_BINARY = method("Coder", "encodeBinary", String.class, int.class, BIT_BUFFER);
+    // List<List<Segment>> Parser.defineSegmentingVariants(String message)
+    static final MethodHandle DEFINE_SEGMENTING_VARIANTS = method("Parser", "defineSegmentingVariants", String.class);
+    static final MethodHandle SET_CACHE_CAPACITY = method("Parser", "setCacheCapacity", int.class);
+    static final MethodHandle GET_CACHE_CAPACITY = method("Parser", "getCacheCapacity");
+    // Corrector.makeCorrectionBlocks(byte[] data, Level level, int version, byte[] correction)
+    static final MethodHandle MAKE_CORRECTION_BLOCKS = method("Corrector", "makeCorrectionBlocks", byte[].class, LEVEL, int.class, byte[].class);
+    // Corrector.BlockCorrector: the scalar one and the vector one (null without the incubator module)
+    static final MethodHandle SCALAR = getter("Corrector", "SCALAR");
+    static final MethodHandle VECTOR = getter("Corrector", "VECTOR");
+    // BlockCorrector.makeCorrectionBytes(byte[] data, int from, int length, byte[] correction, int correctionFrom, int n)
+    static final MethodHandle MAKE_CORRECTION_BYTES = method("Corrector$BlockCorrector", "makeCorrectionBytes",
+                                                             byte[].class, int.class, int.class, byte[].class, int.class, int.class);
+    // BitMatrix QRCode.markup(BitBuffer qred, Level level, int version, QREncoder encoder)
+    static final MethodHandle MARKUP = method("QRCode", "markup", BIT_BUFFER, LEVEL, int.class, QR_ENCODER);
+    // QRCode.tryOnMask(BitBuffer qred, Level level, int nOfMask, Template template, long[] qrcode)
+    static final MethodHandle TRY_ON_MASK = method("QRCode", "tryOnMask", BIT_BUFFER, LEVEL, int.class, type("QRCode$Template"), long[].class);
+    // int QRCode.rateTheMask(Trial qrcode, int size, int bound)
+    static final MethodHandle RATE_THE_MASK = method("QRCode", "rateTheMask", type("QREncoder$Trial"), int.class, int.class);
+    static final MethodHandle TEMPLATE = method("QRCode", "template", int.class);
+    // QRCode QRCode.encode(String message, Level level, int version)
+    static final MethodHandle ENCODE = method("QRCode", "encode", String.class, LEVEL, int.class);
+    static final MethodHandle PREPARE = method("QREncoder", "prepare", int.class);
+    static final MethodHandle TRIALS = getter("QREncoder", "trials");
+    static final MethodHandle MODULES = getter("QREncoder$Trial", "modules");
+    static final MethodHandle GET_VERSION = method("QRCode", "getVersion");
+    static final MethodHandle APPEND_BITS = method("BitBuffer", "appendBits", int.class, int.class);
+    static final MethodHandle CLEAR = method("BitBuffer", "clear");
+    static final MethodHandle LEVEL_GET_SIZE = method("Level", "getSize", int.class);
+    static final MethodHandle HOW_MANY_BLOCKS = method("Level", "howManyBlocks", int.class);
+    static final MethodHandle CORRECTION_BYTES_PER_BLOCK = method("Level", "getCorrectionBytesPerBlock", int.class);
+    
+    private Library() {}
+    
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("The library class " + name + " is not on the class path.", e);
+        }
+    }
+    
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object level(String name) {
+        return Enum.valueOf((Class) LEVEL, name);
+    }
+    
+    static Object newInstance(Class<?> type) throws ReflectiveOperationException {
+        return type.getDeclaredConstructor().newInstance();
+    }
+    
+    static Object newBitBuffer(int capacity) throws ReflectiveOperationException {
+        return BIT_BUFFER.getDeclaredConstructor(int.class).newInstance(capacity);
+    }
+    
+    // Static or instance method, package access included
+    private static MethodHandle method(String owner, String name, Class<?>... parameters) {
+        try {
+            Method method = type(owner).getDeclaredMethod(name, parameters);
+            method.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflect(method);
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The library has no method " + owner + "." + name + ".", e);
+        }
+    }
+    
+    // Static or instance field
+    private static MethodHandle getter(String owner, String name) {
+        try {
+            Field field = type(owner).getDeclaredField(name);
+            field.setAccessible(true);
+            MethodHandle handle = MethodHandles.lookup().unreflectGetter(field);
+            return handle.asType(erase(handle.type()));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("The library has no field " + owner + "." + name + ".", e);
+        }
+    }
+    
+    private static MethodType erase(MethodType type) {
+        MethodType erased = MethodType.methodType(erase(type.returnType()));
+        for (Class<?> parameter: type.parameterList()) erased = erased.appendParameterTypes(erase(parameter));
+        return erased;
+    }
+    
+    // Types of the default package (arrays of them included) become Object
+    private static Class<?> erase(Class<?> type) {
+        Class<?> element = type;
+        while (element.isArray()) element = element.getComponentType();
+        return element.isPrimitive() || !element.getPackageName().isEmpty() ? type : Object.class;
+    }
+}
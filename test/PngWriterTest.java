@@ -0,0 +1,38 @@
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.util.zip.Deflater;
+import javax.imageio.ImageIO;
+
+// Checks of PngWriter output by ImageIO, apart from PngWriter so that the library needs no java.desktop
+public class PngWriterTest {
+    
+    public static void main(String[] args) throws Exception {
+        { // ImageIO test: the picture decoded by ImageIO has the modules of the code, scaled and with the quiet zone
+            BitMatrix code = QRCode.encode("HELLO WORLD 0123456789 hello world", Level.Q).getCode();
+            int[][] options = {{1, 0}, {1, 4}, {3, 2}, {4, 4}, {7, 1}, {10, 0}};
+            boolean allEqual = true;
+            for (int[] option: options) {
+                int scale = option[0];
+                int quietZone = option[1];
+                RenderOptions renderOptions = RenderOptions.defaults().withScale(scale).withQuietZone(quietZone);
+                BufferedImage image;
+                try (PngWriter writer = new PngWriter(renderOptions, Deflater.DEFAULT_COMPRESSION)) {
+                    image = ImageIO.read(new ByteArrayInputStream(writer.toBytes(code)));
+                }
+                int pixels = renderOptions.imageSize(code);
+                boolean equal = image.getWidth() == pixels && image.getHeight() == pixels;
+                for (int y = 0; equal && y < pixels; y++) {
+                    for (int x = 0; equal && x < pixels; x++) {
+                        int i = y / scale - quietZone;
+                        int j = x / scale - quietZone;
+                        boolean dark = i >= 0 && j >= 0 && i < code.getSize() && j < code.getSize() && code.get(j, i);
+                        equal = ((image.getRGB(x, y) & 0xFFFFFF) == 0) == dark;
+                    }
+                }
+                if (!equal) System.out.printf("scale %d, quiet zone %d: differs%n", scale, quietZone);
+                allEqual = allEqual && equal;
+            }
+            System.out.printf("%s: %s%n", "ImageIO test", allEqual ? "ok" : "failed");
+        }
+    }
+}
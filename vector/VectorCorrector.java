@@ -0,0 +1,79 @@
+import java.util.Arrays;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+    Reed-Solomon correction bytes with the jdk.incubator.vector API.
+    Needs --add-modules jdk.incubator.vector to compile and run, so it lives apart from the other sources
+    (the vector source set of the build). Corrector loads it by name and falls back to the scalar
+    implementation without it. CorrectorBenchmark compares the two.
+    
+    For every data byte all n registers are updated at once, lane j holding register j.
+    The product a * g[j] is split by nibbles of a: LOW[a & 15][j] ^ HIGH[a >> 4][j],
+    so one step is two table loads and two XORs per vector. Table rows are padded 
+    with zeros to whole vectors, so the lanes beyond n leave the registers as they are 
+    and no masks are needed.
+*/
+class VectorCorrector implements Corrector.BlockCorrector {
+    
+    // 32 lanes hold all the registers (at most 30) in one vector
+    private static final VectorSpecies<Byte> SPECIES = 
+        ByteVector.SPECIES_PREFERRED.length() >= 32 ? ByteVector.SPECIES_256 : ByteVector.SPECIES_PREFERRED;
+    // Number of registers rounded up to whole vectors
+    private static final int[] STRIDE = new int[Corrector.GENERATING_POLYNOMIAL.length];
+    
+    // LOW[n][k * stride + j] = k * g[j], HIGH[n][k * stride + j] = (k << 4) * g[j] for k in range [0 - 15]
+    private static final byte[][] LOW = new byte[Corrector.GENERATING_POLYNOMIAL.length][];
+    private static final byte[][] HIGH = new byte[Corrector.GENERATING_POLYNOMIAL.length][];
+    static {
+        for (int n = 0; n < LOW.length; n++) {
+            int[] generatingPolynomial = Corrector.generatingPolynomial(n);
+            if (generatingPolynomial == null) continue;
+            int stride = SPECIES.loopBound(n + SPECIES.length() - 1);
+            STRIDE[n] = stride;
+            LOW[n] = new byte[16 * stride];
+            HIGH[n] = new byte[16 * stride];
+            for (int k = 0; k < 16; k++) {
+                for (int j = 0; j < n; j++) {
+                    LOW[n][k * stride + j] = (byte) Corrector.multiply(k, generatingPolynomial[j]);
+                    HIGH[n][k * stride + j] = (byte) Corrector.multiply(k << 4, generatingPolynomial[j]);
+                }
+            }
+        }
+    }
+    
+    // Sliding registers: before the i-th data byte the remainder is work[i, i + n)
+    private static final ThreadLocal<byte[]> WORK = ThreadLocal.withInitial(() -> new byte[256]);
+    
+    @Override
+    public void makeCorrectionBytes(byte[] data, int from, int length, byte[] correction, int correctionFrom, int n) {
+        byte[] low = n < LOW.length ? LOW[n] : null;
+        byte[] high = n < HIGH.length ? HIGH[n] : null;
+        if (low == null)
+            throw new IllegalArgumentException("There is no generating polynomial for " + n + " correction bytes.");
+        
+        int stride = STRIDE[n];
+        byte[] work = WORK.get();
+        if (work.length < length + stride + 1) {
+            work = new byte[length + stride + 1];
+            WORK.set(work);
+        }
+        Arrays.fill(work, 0, length + stride + 1, (byte) 0);
+        
+        for (int i = 0; i < length; i++) {
+            int a = (data[from + i] ^ work[i]) & 0xFF;
+            if (a == 0) continue;
+            int lowRow = (a & 15) * stride;
+            int highRow = (a >>> 4) * stride;
+            for (int j = 0; j < stride; j += SPECIES.length()) {
+                ByteVector.fromArray(SPECIES, work, i + 1 + j)
+                          .lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, low, lowRow + j))
+                          .lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, high, highRow + j))
+                          .intoArray(work, i + 1 + j);
+            }
+        }
+        System.arraycopy(work, length, correction, correctionFrom, n);
+    }
+}